@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * BenchmarkRunner
+ * 
+ * BenchmarkRunner runs the microbenchmarks with the GC profiler, so that
+ * allocation rates are reported along with throughput. Results are written to
+ * jmh-result.json.
+ * 
+ * Usage: java -jar target/benchmarks.jar [regexp of benchmarks]
+ * 
+ * @author shoji
+ * 
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+    new Runner(new OptionsBuilder().include(include)
+        .addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON)
+        .result("jmh-result.json").build()).run();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DecodingBenchmark
+ * 
+ * DecodingBenchmark measures decoding of index entries into bucket bounds and
+ * of data table rows into blocks of both point formats, and into point
+ * objects for comparison.
+ * 
+ * @author shoji
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class DecodingBenchmark {
+
+  private static final int SIZE = 1024;
+
+  // points per row of the data table
+  private static final int POINTS_PER_ROW = 4;
+
+  private final byte[][] bucketKeys = new byte[SIZE][];
+  private final int[] prefixLengths = new int[SIZE];
+  private final Result[] rows = new Result[SIZE];
+  private final Result[] compactRows = new Result[SIZE];
+  private final PointBlock block = new PointBlock(POINTS_PER_ROW);
+
+  private int i = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int j = 0; j < SIZE; j++) {
+      int pl = 2 + random.nextInt(30);
+      long key = ZOrder.zip(random.nextInt(Integer.MAX_VALUE),
+          random.nextInt(Integer.MAX_VALUE));
+      bucketKeys[j] = Bytes.toBytes(key & ~(-1L >>> pl));
+      prefixLengths[j] = pl;
+
+      int x = random.nextInt(Integer.MAX_VALUE);
+      int y = random.nextInt(Integer.MAX_VALUE);
+      byte[] row = Utils.bitwiseZip(x, y);
+      Point p = new Point(0L, x, y);
+      KeyValue[] kvs = new KeyValue[POINTS_PER_ROW];
+      KeyValue[] compactKvs = new KeyValue[POINTS_PER_ROW];
+      for (int k = 0; k < kvs.length; k++) {
+        kvs[k] = new KeyValue(row, Bucket.FAMILY, PointFormat.V1
+            .toQualifier(k), PointFormat.V1.toValue(p));
+        compactKvs[k] = new KeyValue(row, Bucket.FAMILY, PointFormat.V2
+            .toQualifier(k), PointFormat.V2.toValue(p));
+      }
+      rows[j] = new Result(kvs);
+      compactRows[j] = new Result(compactKvs);
+    }
+  }
+
+  private int next() {
+    i = (i + 1) & (SIZE - 1);
+    return i;
+  }
+
+  @Benchmark
+  public Range[] toRanges() {
+    int j = next();
+    return Index.toRanges(bucketKeys[j], prefixLengths[j]);
+  }
+
+  @Benchmark
+  public PointBlock decodeRow() {
+    block.clear();
+    PointFormat.V1.addPoints(rows[next()], block);
+    return block;
+  }
+
+  @Benchmark
+  public PointBlock decodeCompactRow() {
+    block.clear();
+    PointFormat.V2.addPoints(compactRows[next()], block);
+    return block;
+  }
+
+  @Benchmark
+  public List<Point> decodeCompactRowToPoints() {
+    PointBlock points = new PointBlock(POINTS_PER_ROW);
+    PointFormat.V2.addPoints(compactRows[next()], points);
+    return new ArrayList<Point>(points.asList());
+  }
+}
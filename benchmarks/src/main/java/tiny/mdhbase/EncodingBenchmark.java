@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * EncodingBenchmark
+ * 
+ * EncodingBenchmark measures Z-order encoding and decoding of row keys.
+ * 
+ * @author shoji
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class EncodingBenchmark {
+
+  private static final int SIZE = 1024;
+
+  private final int[] xs = new int[SIZE];
+  private final int[] ys = new int[SIZE];
+  private final byte[][] keys = new byte[SIZE][];
+  private final long[] zs = new long[SIZE];
+
+  private int i = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int j = 0; j < SIZE; j++) {
+      xs[j] = random.nextInt(Integer.MAX_VALUE);
+      ys[j] = random.nextInt(Integer.MAX_VALUE);
+      keys[j] = Utils.bitwiseZip(xs[j], ys[j]);
+      zs[j] = ZOrder.zip(xs[j], ys[j]);
+    }
+  }
+
+  private int next() {
+    i = (i + 1) & (SIZE - 1);
+    return i;
+  }
+
+  @Benchmark
+  public byte[] bitwiseZip() {
+    int j = next();
+    return Utils.bitwiseZip(xs[j], ys[j]);
+  }
+
+  @Benchmark
+  public int[] bitwiseUnzip() {
+    return Utils.bitwiseUnzip(keys[next()]);
+  }
+
+  @Benchmark
+  public int makeGap() {
+    return Utils.makeGap(xs[next()]);
+  }
+
+  @Benchmark
+  public int elimGap() {
+    return Utils.elimGap(xs[next()]);
+  }
+
+  @Benchmark
+  public long zip() {
+    int j = next();
+    return ZOrder.zip(xs[j], ys[j]);
+  }
+
+  @Benchmark
+  public long unzip() {
+    long z = zs[next()];
+    return ZOrder.unzipX(z) ^ ZOrder.unzipY(z);
+  }
+}
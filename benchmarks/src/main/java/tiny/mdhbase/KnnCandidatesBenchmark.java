@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KnnCandidatesBenchmark
+ * 
+ * KnnCandidatesBenchmark measures keeping the k nearest candidates out of the
+ * points of scanned buckets, as {@link Client#nearestNeighbor(Point, int)}
+ * does, in the former TreeSet of points and in {@link KnnHeap}.
+ * 
+ * @author shoji
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class KnnCandidatesBenchmark {
+
+  private static final int SIZE = 10000;
+
+  @Param({ "10", "1000" })
+  public int k;
+
+  private final Point[] points = new Point[SIZE];
+
+  private final PointBlock block = new PointBlock(SIZE);
+
+  private Point query;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int j = 0; j < SIZE; j++) {
+      points[j] = new Point(j, random.nextInt(1 << 20),
+          random.nextInt(1 << 20));
+      block.add(points[j].id, points[j].x, points[j].y);
+    }
+    query = new Point(-1, 1 << 19, 1 << 19);
+  }
+
+  @Benchmark
+  public NavigableSet<Point> treeSet() {
+    final Point point = query;
+    NavigableSet<Point> results = new TreeSet<Point>(new Comparator<Point>() {
+
+      @Override
+      public int compare(Point o1, Point o2) {
+        return Double.compare(point.distanceFrom(o1), point.distanceFrom(o2));
+      }
+
+    });
+    for (Point p : points) {
+      results.add(p);
+      if (results.size() > k) {
+        results.pollLast();
+      }
+    }
+    return results;
+  }
+
+  @Benchmark
+  public KnnHeap heap() {
+    KnnHeap results = new KnnHeap(k);
+    int qx = query.x;
+    int qy = query.y;
+    for (Point p : points) {
+      results.offer(p.id, p.x, p.y, KnnHeap.squaredDistance(qx, qy, p.x, p.y));
+    }
+    return results;
+  }
+
+  @Benchmark
+  public KnnHeap heapOfBlock() {
+    KnnHeap results = new KnnHeap(k);
+    results.offerAll(block, query.x, query.y);
+    return results;
+  }
+}
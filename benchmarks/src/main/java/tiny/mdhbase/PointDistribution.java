@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * PointDistribution
+ * 
+ * PointDistribution generates points of a workload in a square space
+ * [0, space) x [0, space).
+ * 
+ * <ul>
+ * <li>uniform: points spread uniformly over the space
+ * <li>gaussian: points gather around cluster centers, like cities
+ * <li>zipf: points gather around hotspots whose popularity follows Zipf's law
+ * </ul>
+ * 
+ * @author shoji
+ * 
+ */
+abstract class PointDistribution {
+
+  protected final int space;
+
+  protected PointDistribution(int space) {
+    this.space = space;
+  }
+
+  /**
+   * 
+   * @param random
+   * @return the coordinates of the next point, as {x, y}
+   */
+  abstract int[] next(Random random);
+
+  /**
+   * 
+   * @param name
+   *          uniform, gaussian or zipf
+   * @param space
+   *          the width of the space
+   * @param clusters
+   *          the number of clusters or hotspots
+   * @param seed
+   *          the seed which places clusters and hotspots
+   * @return
+   */
+  static PointDistribution create(String name, int space, int clusters,
+      long seed) {
+    if (name.equals("uniform")) {
+      return new Uniform(space);
+    } else if (name.equals("gaussian")) {
+      return new Clustered(space, clusters, 0.0, space / (clusters * 4.0),
+          new Random(seed));
+    } else if (name.equals("zipf")) {
+      return new Clustered(space, clusters, 1.0, space / 1024.0, new Random(
+          seed));
+    } else {
+      throw new IllegalArgumentException("unknown distribution: " + name);
+    }
+  }
+
+  protected int clip(double v) {
+    return (int) Math.max(0, Math.min(space - 1, Math.round(v)));
+  }
+
+  static class Uniform extends PointDistribution {
+
+    Uniform(int space) {
+      super(space);
+    }
+
+    @Override
+    int[] next(Random random) {
+      return new int[] { random.nextInt(space), random.nextInt(space) };
+    }
+  }
+
+  /**
+   * points normally distributed around centers. A center is chosen with the
+   * probability proportional to 1 / rank^exponent; an exponent of 0 chooses
+   * centers uniformly.
+   */
+  static class Clustered extends PointDistribution {
+    private final int[] xs;
+    private final int[] ys;
+    private final double[] cumulative;
+    private final double deviation;
+
+    Clustered(int space, int clusters, double exponent, double deviation,
+        Random random) {
+      super(space);
+      this.xs = new int[clusters];
+      this.ys = new int[clusters];
+      this.cumulative = new double[clusters];
+      this.deviation = deviation;
+      double sum = 0.0;
+      for (int i = 0; i < clusters; i++) {
+        xs[i] = random.nextInt(space);
+        ys[i] = random.nextInt(space);
+        sum += 1.0 / Math.pow(i + 1, exponent);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < clusters; i++) {
+        cumulative[i] /= sum;
+      }
+    }
+
+    @Override
+    int[] next(Random random) {
+      int i = Arrays.binarySearch(cumulative, random.nextDouble());
+      if (i < 0) {
+        i = Math.min(-i - 1, cumulative.length - 1);
+      }
+      return new int[] { clip(xs[i] + random.nextGaussian() * deviation),
+          clip(ys[i] + random.nextGaussian() * deviation) };
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RangeFilterBenchmark
+ * 
+ * RangeFilterBenchmark measures {@link RangeFilter} over KeyValues as a region
+ * server passes them, for query regions which hold a given fraction of the
+ * points.
+ * 
+ * @author shoji
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class RangeFilterBenchmark {
+
+  private static final int SIZE = 1024;
+
+  private static final int SPACE = 1 << 20;
+
+  /**
+   * the width of the query region relative to the space
+   */
+  @Param({ "0.01", "0.1", "0.5" })
+  public double selectivity;
+
+  private final KeyValue[] kvs = new KeyValue[SIZE];
+
+  private RangeFilter filter;
+
+  private int i = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int j = 0; j < SIZE; j++) {
+      int x = random.nextInt(SPACE);
+      int y = random.nextInt(SPACE);
+      kvs[j] = new KeyValue(Utils.bitwiseZip(x, y), Bucket.FAMILY,
+          Bytes.toBytes(random.nextLong()), Utils.concat(Bytes.toBytes(x),
+              Bytes.toBytes(y)));
+    }
+    int width = (int) (SPACE * selectivity);
+    filter = new RangeFilter(new Range(0, width), new Range(0, width));
+  }
+
+  @Benchmark
+  public ReturnCode filter() {
+    i = (i + 1) & (SIZE - 1);
+    KeyValue kv = kvs[i];
+    filter.reset();
+    if (filter.filterRowKey(kv.getBuffer(), kv.getRowOffset(),
+        kv.getRowLength())) {
+      return ReturnCode.NEXT_ROW;
+    }
+    return filter.filterKeyValue(kv);
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.JVMClusterUtil.RegionServerThread;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * WorkloadBenchmark
+ * 
+ * WorkloadBenchmark starts an HBase mini-cluster, loads points, then drives a
+ * mix of insertions, point queries, range queries and k-nearest-neighbor
+ * queries from client threads for a given duration.
+ * 
+ * Latencies are recorded in HdrHistograms per operation. With a target rate,
+ * each operation is scheduled at a fixed interval and its latency is measured
+ * from the scheduled time, so that a stalled operation also counts for the
+ * operations queued behind it (coordinated omission). Server requests are read
+ * from the regions of the mini-cluster. Results, including the prefix length
+ * profile of the buckets, are written as JSON.
+ * 
+ * Usage: WorkloadBenchmark [key=value ...]
+ * 
+ * <ul>
+ * <li>threads: client threads (4)
+ * <li>duration: seconds of the mixed phase (60)
+ * <li>load: points loaded before the mixed phase (100000)
+ * <li>mix: weights of insert:get:range:knn (10:30:30:30)
+ * <li>distribution: uniform, gaussian or zipf (uniform)
+ * <li>clusters: clusters of gaussian, hotspots of zipf (16)
+ * <li>space: width of the space (1048576)
+ * <li>splitThreshold: split threshold of buckets (1000)
+ * <li>rate: target operations per second per thread, 0 for no limit (0)
+ * <li>rangeSize: width of range queries (4096)
+ * <li>k: k of nearest neighbor queries (10)
+ * <li>seed: random seed (0)
+ * <li>output: the JSON file (workload-result.json)
+ * </ul>
+ * 
+ * @author shoji
+ * 
+ */
+public class WorkloadBenchmark {
+
+  private static final String TABLE_NAME = "Workload";
+
+  // one hour in microseconds
+  private static final long HIGHEST_LATENCY = 3600L * 1000 * 1000;
+
+  enum Operation {
+    INSERT, GET, RANGE, KNN
+  }
+
+  /**
+   * results of a phase of the workload
+   */
+  static class PhaseResult {
+    final String name;
+    final Map<Operation, Histogram> latencies;
+    final long elapsedMillis;
+    final long serverRequests;
+
+    PhaseResult(String name, Map<Operation, Histogram> latencies,
+        long elapsedMillis, long serverRequests) {
+      this.name = name;
+      this.latencies = latencies;
+      this.elapsedMillis = elapsedMillis;
+      this.serverRequests = serverRequests;
+    }
+
+    long operations() {
+      long operations = 0L;
+      for (Histogram histogram : latencies.values()) {
+        operations += histogram.getTotalCount();
+      }
+      return operations;
+    }
+  }
+
+  private final Map<String, String> settings =
+      new LinkedHashMap<String, String>();
+
+  private final int threads;
+  private final long duration;
+  private final long load;
+  private final int[] mix;
+  private final PointDistribution distribution;
+  private final int space;
+  private final int splitThreshold;
+  private final double rate;
+  private final int rangeSize;
+  private final int k;
+  private final long seed;
+  private final String output;
+
+  private HBaseTestingUtility util;
+  private Client client;
+
+  WorkloadBenchmark(Properties props) {
+    this.threads = Integer.parseInt(setting(props, "threads", "4"));
+    this.duration = TimeUnit.SECONDS.toMillis(Long.parseLong(setting(props,
+        "duration", "60")));
+    this.load = Long.parseLong(setting(props, "load", "100000"));
+    String[] weights = setting(props, "mix", "10:30:30:30").split(":");
+    this.mix = new int[Operation.values().length];
+    for (int i = 0; i < mix.length; i++) {
+      mix[i] = Integer.parseInt(weights[i]);
+    }
+    this.space = Integer.parseInt(setting(props, "space", "1048576"));
+    this.seed = Long.parseLong(setting(props, "seed", "0"));
+    this.distribution = PointDistribution.create(setting(props,
+        "distribution", "uniform"), space, Integer.parseInt(setting(props,
+        "clusters", "16")), seed);
+    this.splitThreshold = Integer.parseInt(setting(props, "splitThreshold",
+        "1000"));
+    this.rate = Double.parseDouble(setting(props, "rate", "0"));
+    this.rangeSize = Integer.parseInt(setting(props, "rangeSize", "4096"));
+    this.k = Integer.parseInt(setting(props, "k", "10"));
+    this.output = setting(props, "output", "workload-result.json");
+  }
+
+  private String setting(Properties props, String key, String defaultValue) {
+    String value = props.getProperty(key, defaultValue);
+    settings.put(key, value);
+    return value;
+  }
+
+  void run() throws Exception {
+    util = new HBaseTestingUtility();
+    util.startMiniCluster();
+    try {
+      Configuration config = util.getConfiguration();
+      client = new Client(config, TABLE_NAME, splitThreshold);
+      List<PhaseResult> phases = new ArrayList<PhaseResult>();
+      try {
+        int[] insertOnly = new int[mix.length];
+        insertOnly[Operation.INSERT.ordinal()] = 1;
+        phases.add(runPhase("load", insertOnly, Long.MAX_VALUE, load, 0.0));
+        phases.add(runPhase("mixed", mix, duration, Long.MAX_VALUE, rate));
+      } finally {
+        client.close();
+      }
+      Writer writer = new FileWriter(output);
+      try {
+        writeResults(writer, phases, profileBuckets(config));
+      } finally {
+        writer.close();
+      }
+      System.out.println("results are written to " + output);
+    } finally {
+      util.shutdownMiniCluster();
+    }
+  }
+
+  private PhaseResult runPhase(String name, final int[] weights,
+      long maxMillis, long maxOperations, double rate) throws Exception {
+    System.out.println("running phase " + name);
+    final long deadline = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+        : System.currentTimeMillis() + maxMillis;
+    final AtomicLong remaining = new AtomicLong(maxOperations);
+    final long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1)
+        / rate) : 0L;
+
+    long requests = serverRequests();
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Map<Operation, Histogram>>> futures =
+        new ArrayList<Future<Map<Operation, Histogram>>>();
+    for (int i = 0; i < threads; i++) {
+      final Random random = new Random(seed + name.hashCode() + i);
+      futures.add(executor.submit(new Callable<Map<Operation, Histogram>>() {
+
+        @Override
+        public Map<Operation, Histogram> call() throws Exception {
+          return drive(random, weights, deadline, remaining, interval);
+        }
+
+      }));
+    }
+    Map<Operation, Histogram> latencies = newHistograms();
+    try {
+      for (Future<Map<Operation, Histogram>> future : futures) {
+        for (Entry<Operation, Histogram> entry : future.get().entrySet()) {
+          latencies.get(entry.getKey()).add(entry.getValue());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // splits run in the background; wait for them so that the next phase
+    // starts from a settled index.
+    while (client.getSplitQueueDepth() > 0) {
+      Thread.sleep(100);
+    }
+    return new PhaseResult(name, latencies, elapsed, serverRequests()
+        - requests);
+  }
+
+  private Map<Operation, Histogram> drive(Random random, int[] weights,
+      long deadline, AtomicLong remaining, long interval) throws IOException,
+      InterruptedException {
+    Map<Operation, Histogram> latencies = newHistograms();
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+    long scheduled = System.nanoTime();
+    while (System.currentTimeMillis() < deadline
+        && remaining.decrementAndGet() >= 0) {
+      Operation op = choose(random, weights, total);
+      long start;
+      if (interval > 0) {
+        long wait = scheduled - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        start = scheduled;
+        scheduled += interval;
+      } else {
+        start = System.nanoTime();
+      }
+      execute(op, random);
+      long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+      latencies.get(op).recordValue(Math.min(latency, HIGHEST_LATENCY));
+    }
+    return latencies;
+  }
+
+  private Operation choose(Random random, int[] weights, int total) {
+    int r = random.nextInt(total);
+    for (Operation op : Operation.values()) {
+      r -= weights[op.ordinal()];
+      if (r < 0) {
+        return op;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private void execute(Operation op, Random random) throws IOException {
+    int[] p = distribution.next(random);
+    switch (op) {
+    case INSERT:
+      client.insert(new Point(random.nextLong(), p[0], p[1]));
+      break;
+    case GET:
+      Iterables.size(client.get(p[0], p[1]));
+      break;
+    case RANGE:
+      Iterables.size(client.rangeQuery(around(p[0]), around(p[1])));
+      break;
+    case KNN:
+      Iterables.size(client.nearestNeighbor(new Point(-1L, p[0], p[1]), k));
+      break;
+    }
+  }
+
+  private Range around(int center) {
+    int half = rangeSize / 2;
+    return new Range(Math.max(0, center - half), Math.min(space - 1, center
+        + half));
+  }
+
+  private static Map<Operation, Histogram> newHistograms() {
+    Map<Operation, Histogram> histograms = new EnumMap<Operation, Histogram>(
+        Operation.class);
+    for (Operation op : Operation.values()) {
+      histograms.put(op, new Histogram(HIGHEST_LATENCY, 3));
+    }
+    return histograms;
+  }
+
+  /*
+   * read and write requests served by all regions of the mini-cluster
+   */
+  private long serverRequests() {
+    long requests = 0L;
+    for (RegionServerThread thread : util.getMiniHBaseCluster()
+        .getRegionServerThreads()) {
+      for (HRegion region : thread.getRegionServer()
+          .getOnlineRegionsLocalContext()) {
+        requests += region.getReadRequestsCount()
+            + region.getWriteRequestsCount();
+      }
+    }
+    return requests;
+  }
+
+  /*
+   * the number of buckets by prefix length
+   */
+  private SortedMap<Integer, Long> profileBuckets(Configuration config)
+      throws IOException {
+    SortedMap<Integer, Long> profile = new TreeMap<Integer, Long>();
+    HTable indexTable = new HTable(config, TABLE_NAME + "_index");
+    ResultScanner entries = indexTable.getScanner(Index.FAMILY_INFO);
+    try {
+      for (Result entry : entries) {
+        byte[] value = entry.getValue(Index.FAMILY_INFO,
+            Index.COLUMN_PREFIX_LENGTH);
+        if (value == null) {
+          continue; // counters left over by a merge, not a bucket
+        }
+        int pl = Bytes.toInt(value);
+        Long count = profile.get(pl);
+        profile.put(pl, count == null ? 1L : count + 1);
+      }
+    } finally {
+      entries.close();
+      indexTable.close();
+    }
+    return profile;
+  }
+
+  private void writeResults(Writer out, List<PhaseResult> phases,
+      SortedMap<Integer, Long> buckets) throws IOException {
+    out.write("{\n  \"settings\": {");
+    String sep = "";
+    for (Entry<String, String> setting : settings.entrySet()) {
+      out.write(String.format("%s\n    \"%s\": \"%s\"", sep, setting.getKey(),
+          setting.getValue()));
+      sep = ",";
+    }
+    out.write("\n  },\n  \"phases\": [");
+    sep = "";
+    for (PhaseResult phase : phases) {
+      long operations = phase.operations();
+      out.write(String.format("%s\n    {\n      \"name\": \"%s\",", sep,
+          phase.name));
+      out.write(String.format("\n      \"operations\": %d,", operations));
+      out.write(String.format("\n      \"elapsedMillis\": %d,",
+          phase.elapsedMillis));
+      out.write(String.format("\n      \"throughput\": %.1f,", operations
+          * 1000.0 / Math.max(1L, phase.elapsedMillis)));
+      out.write(String.format("\n      \"serverRequests\": %d,",
+          phase.serverRequests));
+      out.write(String.format("\n      \"serverRequestsPerOperation\": %.2f,",
+          (double) phase.serverRequests / Math.max(1L, operations)));
+      out.write("\n      \"latencyMicros\": {");
+      String opSep = "";
+      for (Entry<Operation, Histogram> entry : phase.latencies.entrySet()) {
+        Histogram h = entry.getValue();
+        if (h.getTotalCount() == 0) {
+          continue;
+        }
+        out.write(String.format("%s\n        \"%s\": {\"count\": %d, "
+            + "\"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, "
+            + "\"p999\": %d, \"max\": %d}", opSep, entry.getKey().name()
+            .toLowerCase(), h.getTotalCount(), h.getMean(),
+            h.getValueAtPercentile(50.0), h.getValueAtPercentile(90.0),
+            h.getValueAtPercentile(99.0), h.getValueAtPercentile(99.9),
+            h.getMaxValue()));
+        opSep = ",";
+      }
+      out.write("\n      }\n    }");
+      sep = ",";
+    }
+    out.write("\n  ],\n  \"buckets\": {");
+    long total = 0L;
+    sep = "";
+    StringBuilder byPrefixLength = new StringBuilder();
+    for (Entry<Integer, Long> entry : buckets.entrySet()) {
+      byPrefixLength.append(String.format("%s\"%d\": %d", sep, entry.getKey(),
+          entry.getValue()));
+      total += entry.getValue();
+      sep = ", ";
+    }
+    out.write(String.format("\n    \"count\": %d,", total));
+    out.write(String.format("\n    \"maxPrefixLength\": %d,",
+        buckets.isEmpty() ? 0 : buckets.lastKey()));
+    out.write("\n    \"byPrefixLength\": {" + byPrefixLength + "}");
+    out.write("\n  }\n}\n");
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = new Properties();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("expected key=value: " + arg);
+      }
+      props.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    new WorkloadBenchmark(props).run();
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * AbstractPointScanner implements {@link #iterator()} on top of
+ * {@link #next()}. As with ResultScanner, an IOException raised while iterating
+ * is rethrown as a RuntimeException.
+ * 
+ * @author shoji
+ * 
+ */
+abstract class AbstractPointScanner implements PointScanner {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Iterable#iterator()
+   */
+  @Override
+  public Iterator<Point> iterator() {
+    return new AbstractIterator<Point>() {
+
+      @Override
+      protected Point computeNext() {
+        try {
+          Point p = AbstractPointScanner.this.next();
+          return p == null ? endOfData() : p;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+    };
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BlockReader
+ * 
+ * BlockReader reads a bucket whose points may be packed into chunks, see
+ * {@link PackedBlock}, in the row of its key. That row is the first row of a
+ * scan of the bucket, so the packed points are known before any cell. While a
+ * bucket is being packed or unpacked, a point may be found both in a chunk and
+ * as a cell, and the cell is then skipped.
+ * 
+ * @author shoji
+ * 
+ */
+final class BlockReader {
+
+  private final long startKey;
+  private final long endKey;
+  private final long zmin;
+  private final long zmax;
+
+  private final Set<PackedBlock.Key> packed = new HashSet<PackedBlock.Key>();
+
+  // the pack id of the stamp, valid once format is set
+  private long packId;
+  private PointFormat format = null;
+
+  // points of the last chunk read
+  private long[] keys = new long[0];
+  private long[] ids = new long[0];
+
+  /**
+   * 
+   * @param startKey
+   *          the first key of the bucket
+   * @param endKey
+   *          the last key of the bucket. Chunks left over by a split may hold
+   *          points of other buckets.
+   * @param zmin
+   *          the Z-order value of the lower corner of the query region
+   * @param zmax
+   *          the Z-order value of the upper corner
+   */
+  BlockReader(long startKey, long endKey, long zmin, long zmax) {
+    this.startKey = startKey;
+    this.endKey = endKey;
+    this.zmin = zmin;
+    this.zmax = zmax;
+  }
+
+  /**
+   * reads a cell of the block family.
+   * 
+   * @param kv
+   * @return the number of points of the cell within the bucket and the query
+   *         region, which are then available by {@link #key(int)} and
+   *         {@link #id(int)}
+   */
+  int read(KeyValue kv) {
+    byte[] buffer = kv.getBuffer();
+    int offset = kv.getValueOffset();
+    if (kv.getQualifierLength() == 0) {
+      packId = PackedBlock.packIdOf(buffer, offset);
+      format = PointFormat.of(PackedBlock.formatOf(buffer, offset));
+      return 0;
+    }
+    if (format == null
+        || !PackedBlock.isChunkOf(buffer, kv.getQualifierOffset(), kv
+            .getQualifierLength(), packId)) {
+      return 0; // left over by a repack
+    }
+    int n = PackedBlock.count(buffer, offset);
+    if (keys.length < n) {
+      keys = new long[n];
+      ids = new long[n];
+    }
+    PackedBlock.decode(buffer, offset, keys, ids);
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      long key = keys[i];
+      if (key >= startKey && key <= endKey && ZOrder.inBox(key, zmin, zmax)) {
+        keys[count] = key;
+        ids[count] = ids[i];
+        count++;
+        packed.add(new PackedBlock.Key(key, ids[i]));
+      }
+    }
+    return count;
+  }
+
+  long key(int i) {
+    return keys[i];
+  }
+
+  long id(int i) {
+    return ids[i];
+  }
+
+  /**
+   * 
+   * @param key
+   * @param id
+   * @return true if the point was read from a chunk
+   */
+  boolean isPacked(long key, long id) {
+    return !packed.isEmpty() && packed.contains(new PackedBlock.Key(key, id));
+  }
+
+  /**
+   * 
+   * @param kv
+   *          a cell of a point
+   * @return true if the point was read from a chunk
+   */
+  boolean isPacked(KeyValue kv) {
+    if (packed.isEmpty()) {
+      return false;
+    }
+    byte[] buffer = kv.getBuffer();
+    return packed.contains(new PackedBlock.Key(Bytes.toLong(buffer, kv
+        .getRowOffset()), format.toId(buffer, kv.getQualifierOffset(), kv
+        .getQualifierLength())));
+  }
+}
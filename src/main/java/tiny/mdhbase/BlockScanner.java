@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * BlockScanner
+ * 
+ * BlockScanner streams points into a {@link PointBlock} supplied by the
+ * caller, a block at a time. A caller which passes the same block to every
+ * call scans any number of points without allocating per point. Scanners must
+ * be closed.
+ * 
+ * @author shoji
+ * 
+ */
+public interface BlockScanner extends Closeable {
+
+  /**
+   * clears the block and fills it with the next points until its capacity is
+   * reached. The points of a row are never split between two fills, so the
+   * block grows if a row does not fit.
+   * 
+   * @param block
+   * @return false if the scanner is exhausted and the block is left empty
+   * @throws IOException
+   */
+  boolean next(PointBlock block) throws IOException;
+
+  /**
+   * closes the scanner and releases the underlying HBase scanners.
+   */
+  @Override
+  void close();
+}
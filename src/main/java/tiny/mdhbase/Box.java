@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Arrays;
+
+/**
+ * Box
+ * 
+ * Box is a query region of any number of dimensions, given by a range on each
+ * dimension.
+ * 
+ * @author shoji
+ * 
+ */
+public class Box {
+  private final Range[] ranges;
+
+  /**
+   * 
+   * @param ranges
+   *          a range on each dimension
+   */
+  public Box(Range... ranges) {
+    if (ranges.length == 0) {
+      throw new IllegalArgumentException("a box needs a dimension");
+    }
+    this.ranges = ranges.clone();
+  }
+
+  public int getDimensions() {
+    return ranges.length;
+  }
+
+  /**
+   * 
+   * @param dimension
+   * @return the range on the dimension
+   */
+  public Range get(int dimension) {
+    return ranges[dimension];
+  }
+
+  public boolean include(int[] coords) {
+    for (int d = 0; d < ranges.length; d++) {
+      if (!ranges[d].include(coords[d])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 
+   * @param that
+   * @return true if that box lies entirely within this box
+   */
+  public boolean include(Box that) {
+    for (int d = 0; d < ranges.length; d++) {
+      if (!ranges[d].include(that.ranges[d])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean intersect(Box that) {
+    for (int d = 0; d < ranges.length; d++) {
+      if (!ranges[d].intersect(that.ranges[d])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    for (Range range : ranges) {
+      buf.append(buf.length() == 0 ? "[" : ", ");
+      buf.append(String.format("%d-%d", range.min, range.max));
+    }
+    return buf.append("]").toString();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Box)) {
+      return false;
+    }
+    Box that = (Box) obj;
+    if (ranges.length != that.ranges.length) {
+      return false;
+    }
+    for (int d = 0; d < ranges.length; d++) {
+      if (ranges[d].min != that.ranges[d].min
+          || ranges[d].max != that.ranges[d].max) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    int[] bounds = new int[ranges.length * 2];
+    for (int d = 0; d < ranges.length; d++) {
+      bounds[2 * d] = ranges[d].min;
+      bounds[2 * d + 1] = ranges[d].max;
+    }
+    return Arrays.hashCode(bounds);
+  }
+}
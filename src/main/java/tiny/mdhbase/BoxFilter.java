@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BoxFilter
+ * 
+ * BoxFilter is {@link RangeFilter} for any number of dimensions. It filters
+ * points within a query box by their row keys, and makes the scanner seek to
+ * the next Z-order value within the box, which is computed by
+ * {@link Interleaver#bigmin(long, long, long)}.
+ * 
+ * @author shoji
+ * 
+ */
+public class BoxFilter extends FilterBase {
+
+  public BoxFilter() {
+
+  }
+
+  private Box box;
+  private Interleaver interleaver;
+
+  // Z-order values of the corners of the query box
+  private long zmin;
+  private long zmax;
+
+  // the row to seek to, or null if the current row is in the query box
+  private byte[] nextRow = null;
+
+  // true if no row is left in the query box
+  private boolean done = false;
+
+  public BoxFilter(Box box) {
+    setBox(box);
+  }
+
+  private void setBox(Box box) {
+    this.box = box;
+    this.interleaver = new Interleaver(box.getDimensions());
+    this.zmin = interleaver.lowerCorner(box);
+    this.zmax = interleaver.upperCorner(box);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.io.Writable#readFields(java.io.DataInput)
+   */
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    Range[] ranges = new Range[in.readInt()];
+    for (int d = 0; d < ranges.length; d++) {
+      int min = in.readInt();
+      int max = in.readInt();
+      ranges[d] = new Range(min, max);
+    }
+    setBox(new Box(ranges));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.io.Writable#write(java.io.DataOutput)
+   */
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(box.getDimensions());
+    for (int d = 0; d < box.getDimensions(); d++) {
+      out.writeInt(box.get(d).min);
+      out.writeInt(box.get(d).max);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.hbase.filter.FilterBase#filterRowKey(byte[], int,
+   * int)
+   */
+  @Override
+  public boolean filterRowKey(byte[] buffer, int offset, int length) {
+    long z = Bytes.toLong(buffer, offset);
+    if (interleaver.inBox(z, zmin, zmax)) {
+      nextRow = null;
+      return false;
+    }
+    long next = interleaver.bigmin(z, zmin, zmax);
+    if (next == -1L) {
+      done = true;
+      return true;
+    }
+    // cells of this row are passed to filterKeyValue, which seeks.
+    nextRow = Bytes.toBytes(next);
+    return false;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.hadoop.hbase.filter.FilterBase#filterKeyValue(org.apache.hadoop
+   * .hbase.KeyValue)
+   */
+  @Override
+  public ReturnCode filterKeyValue(KeyValue kv) {
+    if (nextRow == null) {
+      return ReturnCode.INCLUDE;
+    } else {
+      return ReturnCode.SEEK_NEXT_USING_HINT;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.hadoop.hbase.filter.FilterBase#getNextKeyHint(org.apache.hadoop
+   * .hbase.KeyValue)
+   */
+  @Override
+  public KeyValue getNextKeyHint(KeyValue currentKV) {
+    return KeyValue.createFirstOnRow(nextRow);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.hbase.filter.FilterBase#filterAllRemaining()
+   */
+  @Override
+  public boolean filterAllRemaining() {
+    return done;
+  }
+
+}
@@ -18,14 +18,12 @@ package tiny.mdhbase;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
+import java.util.Collections;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -46,6 +44,10 @@ import org.apache.hadoop.hbase.util.Bytes;
  * {@link Point#y}
  * </ul>
  * 
+ * See {@link PointFormat} for the encodings of later versions. If the data
+ * table packs buckets, cold buckets keep their points in chunks in the row of
+ * the bucket key, see {@link PackedBlock}, and only new points as cells.
+ * 
  * @author shoji
  * 
  */
@@ -53,31 +55,139 @@ public class Bucket {
 
   public static byte[] FAMILY = "P".getBytes();
 
-  private final HTable dataTable;
+  // the initial capacity of blocks which hold a few rows
+  private static final int ROW_CAPACITY = 16;
+
   private final byte[] startRow;
   private final byte[] stopRow;
+  private final int prefixLength;
   private final Index index;
   private final Range rangeX;
   private final Range rangeY;
+  private final long size;
 
-  public Bucket(HTable dataTable, Range rx, Range ry, Index index) {
-    checkNotNull(dataTable);
+  public Bucket(Range rx, Range ry, int prefixLength, Index index) {
+    this(rx, ry, prefixLength, -1L, index);
+  }
+
+  /**
+   * 
+   * @param rx
+   * @param ry
+   * @param prefixLength
+   * @param size
+   *          the number of points recorded in the index entry, or -1 if unknown
+   * @param index
+   */
+  Bucket(Range rx, Range ry, int prefixLength, long size, Index index) {
     checkNotNull(rx);
     checkNotNull(ry);
     checkNotNull(index);
-    this.dataTable = dataTable;
     this.rangeX = rx;
     this.rangeY = ry;
-    this.startRow = Utils.bitwiseZip(rx.min, ry.min);
-    this.stopRow = Bytes.incrementBytes(Utils.bitwiseZip(rx.max, ry.max), 1L);
+    this.startRow = Bytes.toBytes(ZOrder.zip(rx.min, ry.min));
+    this.stopRow = Bytes.toBytes(ZOrder.zip(rx.max, ry.max) + 1);
+    this.prefixLength = prefixLength;
+    this.size = size;
     this.index = index;
   }
 
   public void insert(byte[] row, Point p) throws IOException {
+    index.dataTable().put(toPut(row, p));
+    index.updateCounters(startRow, prefixLength, Collections
+        .singletonList(row), 1L);
+  }
+
+  /**
+   * deletes a point from this bucket.
+   * 
+   * @param row
+   *          a row key of the point
+   * @param p
+   * @return true if the point was stored and is deleted
+   * @throws IOException
+   */
+  public boolean delete(byte[] row, Point p) throws IOException {
+    PointFormat format = index.getPointFormat();
+    // the counters are decremented only if this call deleted the point
+    if (!index.deletePoint(row, format.toQualifier(p.id), format.toValue(p))
+        && !index.deletePackedPoint(startRow, Bytes.toLong(row), p.id)) {
+      return false;
+    }
+    index.updateCounters(startRow, prefixLength, Collections
+        .singletonList(row), -1L);
+    return true;
+  }
+
+  /**
+   * builds a put which stores the point in this bucket.
+   * 
+   * @param row
+   *          a row key of the point
+   * @param p
+   * @return
+   */
+  Put toPut(byte[] row, Point p) {
     Put put = new Put(row);
-    put.add(FAMILY, toQualifier(p), toValue(p));
-    dataTable.put(put);
-    index.notifyInsertion(row);
+    PointFormat format = index.getPointFormat();
+    put.add(FAMILY, format.toQualifier(p.id), format.toValue(p));
+    return put;
+  }
+
+  /**
+   * 
+   * @return the key of the index entry of this bucket
+   */
+  byte[] getKey() {
+    return startRow;
+  }
+
+  /**
+   * 
+   * @return the common prefix length of points in this bucket
+   */
+  int getPrefixLength() {
+    return prefixLength;
+  }
+
+  /**
+   * computes the row range to scan for the query region. Points in the
+   * intersection of this bucket and the query region lie between the Z-order
+   * values of the corners of the intersection. If the data table packs buckets,
+   * the range starts at the key of this bucket, whose row holds the chunks.
+   * 
+   * @param rx
+   * @param ry
+   * @return a pair of the inclusive start row and the exclusive stop row
+   */
+  byte[][] rowRange(Range rx, Range ry) {
+    if (!rx.intersect(rangeX) || !ry.intersect(rangeY)) {
+      return new byte[][] { startRow, stopRow };
+    }
+    long start = index.isPacking() ? Bytes.toLong(startRow) : ZOrder.zip(Math
+        .max(rx.min, rangeX.min), Math.max(ry.min, rangeY.min));
+    long stop = ZOrder.zip(Math.min(rx.max, rangeX.max),
+        Math.min(ry.max, rangeY.max)) + 1;
+    return new byte[][] { Bytes.toBytes(start), Bytes.toBytes(stop) };
+  }
+
+  /**
+   * 
+   * @return the number of points recorded in the index entry of this bucket
+   *         when it was fetched, or -1 if unknown
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * 
+   * @param rx
+   * @param ry
+   * @return true if this bucket lies entirely within the query region
+   */
+  boolean within(Range rx, Range ry) {
+    return rx.include(rangeX) && ry.include(rangeY);
   }
 
   /**
@@ -88,13 +198,22 @@ public class Bucket {
    * @throws IOException
    */
   public Collection<Point> get(byte[] row) throws IOException {
+    PointFormat format = index.getPointFormat();
+    PointBlock found = new PointBlock(ROW_CAPACITY);
+    BlockReader reader = null;
+    if (index.isPacking()) {
+      long key = Bytes.toLong(row);
+      reader = newBlockReader(key, key);
+      Get block = new Get(startRow);
+      block.addFamily(PackedBlock.FAMILY);
+      addPoints(index.dataTable().get(block), format, reader, found);
+    }
+
     Get get = new Get(row);
     get.addFamily(FAMILY);
-    Result result = dataTable.get(get);
-
-    List<Point> found = new LinkedList<Point>();
-    transformResultAndAddToList(result, found);
-    return found;
+    Result result = index.dataTable().get(get);
+    addPoints(result, format, reader, found);
+    return found.asList();
   }
 
   /**
@@ -108,45 +227,221 @@ public class Bucket {
    * @throws IOException
    */
   public Collection<Point> scan(Range rx, Range ry) throws IOException {
-    Scan scan = new Scan(startRow, stopRow);
+    return scan(rx, ry, new PointBlock()).asList();
+  }
+
+  /**
+   * scans this bucket and appends all points within the query region to the
+   * block.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @param block
+   *          receives the points, growing as needed
+   * @return the block
+   * @throws IOException
+   */
+  public PointBlock scan(Range rx, Range ry, PointBlock block)
+      throws IOException {
+    RowBlockScanner scanner = blockScanner(rx, ry);
+    try {
+      scanner.fill(block, Integer.MAX_VALUE);
+    } finally {
+      scanner.close();
+    }
+    return block;
+  }
+
+  /**
+   * opens a scanner over the points of this bucket within the query region.
+   * Rows are fetched and decoded as the points are consumed.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @return a scanner which must be closed
+   * @throws IOException
+   */
+  public PointScanner scanner(Range rx, Range ry) throws IOException {
+    final RowBlockScanner scanner = blockScanner(rx, ry);
+    return new AbstractPointScanner() {
+      // points of the current rows
+      private final PointBlock buffer = new PointBlock(ROW_CAPACITY);
+      private int next = 0;
+
+      @Override
+      public Point next() throws IOException {
+        if (next == buffer.size()) {
+          if (!scanner.next(buffer)) {
+            return null;
+          }
+          next = 0;
+        }
+        return buffer.get(next++);
+      }
+
+      @Override
+      public void close() {
+        scanner.close();
+      }
+
+    };
+  }
+
+  /**
+   * opens a scanner which decodes the points of this bucket within the query
+   * region into blocks.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @return a scanner which must be closed
+   * @throws IOException
+   */
+  RowBlockScanner blockScanner(Range rx, Range ry) throws IOException {
+    byte[][] rows = rowRange(rx, ry);
+    Scan scan = new Scan(rows[0], rows[1]);
     Filter filter = new RangeFilter(rx, ry);
     scan.setFilter(filter);
     scan.setCaching(1000);
-    ResultScanner scanner = dataTable.getScanner(scan);
-    List<Point> results = new LinkedList<Point>();
-    for (Result result : scanner) {
-      transformResultAndAddToList(result, results);
-    }
-    return results;
+    BlockReader reader = index.isPacking() ? newBlockReader(ZOrder.zip(
+        rx.min, ry.min), ZOrder.zip(rx.max, ry.max)) : null;
+    return new RowBlockScanner(index.dataTable().getScanner(scan), index
+        .getPointFormat(), reader, index.getMetrics());
   }
 
-  public Collection<Point> scan() throws IOException {
-    return scan(rangeX, rangeY);
+  private BlockReader newBlockReader(long zmin, long zmax) {
+    return new BlockReader(Bytes.toLong(startRow),
+        Bytes.toLong(stopRow) - 1, zmin, zmax);
   }
 
-  private void transformResultAndAddToList(Result result, List<Point> found) {
-    NavigableMap<byte[], byte[]> map = result.getFamilyMap(FAMILY);
-    for (Entry<byte[], byte[]> entry : map.entrySet()) {
-      Point p = toPoint(entry.getKey(), entry.getValue());
-      found.add(p);
+  /*
+   * decodes the chunks in a row, if any, and then the cells of points which
+   * were not read from a chunk.
+   */
+  private static void addPoints(Result result, PointFormat format,
+      BlockReader reader, PointBlock found) {
+    if (reader == null || result.isEmpty()) {
+      format.addPoints(result, found);
+      return;
+    }
+    for (KeyValue kv : result.raw()) {
+      if (kv.matchingFamily(PackedBlock.FAMILY)) {
+        for (int i = 0, n = reader.read(kv); i < n; i++) {
+          long key = reader.key(i);
+          found.add(reader.id(i), ZOrder.unzipX(key), ZOrder.unzipY(key));
+        }
+      }
     }
+    int from = found.size();
+    format.addPoints(result, found);
+    // drops cells of points which were read from a chunk, in place
+    long[] ids = found.ids();
+    int[] xs = found.xs();
+    int[] ys = found.ys();
+    int to = from;
+    for (int i = from; i < found.size(); i++) {
+      if (!reader.isPacked(ZOrder.zip(xs[i], ys[i]), ids[i])) {
+        found.move(i, to++);
+      }
+    }
+    found.truncate(to);
   }
 
-  private byte[] toQualifier(Point p) {
-    return Bytes.toBytes(p.id);
+  /**
+   * RowBlockScanner fills blocks with the points of the rows returned by a
+   * scanner of the data table, a whole row at a time.
+   */
+  static final class RowBlockScanner implements BlockScanner {
+
+    private final ResultScanner scanner;
+    private final PointFormat format;
+    private final BlockReader reader;
+    private final Metrics metrics;
+    private final long start;
+    private long rows = 0L;
+    private long points = 0L;
+    private boolean closed = false;
+
+    private RowBlockScanner(ResultScanner scanner, PointFormat format,
+        BlockReader reader, Metrics metrics) {
+      this.scanner = scanner;
+      this.format = format;
+      this.reader = reader;
+      this.metrics = metrics;
+      this.start = metrics.start();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see tiny.mdhbase.BlockScanner#next(tiny.mdhbase.PointBlock)
+     */
+    @Override
+    public boolean next(PointBlock block) throws IOException {
+      block.clear();
+      fill(block, block.capacity());
+      return !block.isEmpty();
+    }
+
+    /**
+     * appends the points of the next rows to the block until it holds at least
+     * limit points.
+     * 
+     * @param block
+     * @param limit
+     * @return false if the scanner is exhausted
+     * @throws IOException
+     */
+    boolean fill(PointBlock block, int limit) throws IOException {
+      while (block.size() < limit) {
+        Result result = scanner.next();
+        if (result == null) {
+          return false;
+        }
+        rows++;
+        int before = block.size();
+        addPoints(result, format, reader, block);
+        points += block.size() - before;
+      }
+      return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see tiny.mdhbase.BlockScanner#close()
+     */
+    @Override
+    public void close() {
+      scanner.close();
+      if (!closed) {
+        closed = true;
+        metrics.stop(Metrics.BUCKET_SCAN, start);
+        metrics.update(Metrics.ROWS_FETCHED, rows);
+        metrics.update(Metrics.POINTS_RETURNED, points);
+      }
+    }
+
   }
 
-  private byte[] toValue(Point p) {
-    byte[] bx = Bytes.toBytes(p.x);
-    byte[] by = Bytes.toBytes(p.y);
-    return Utils.concat(bx, by);
+  public Collection<Point> scan() throws IOException {
+    return scan(rangeX, rangeY);
   }
 
-  private Point toPoint(byte[] qualifier, byte[] value) {
-    long id = Bytes.toLong(qualifier);
-    int x = Bytes.toInt(value, 0);
-    int y = Bytes.toInt(value, 4);
-    return new Point(id, x, y);
+  /**
+   * appends all points of this bucket to the block.
+   * 
+   * @param block
+   * @return the block
+   * @throws IOException
+   */
+  public PointBlock scan(PointBlock block) throws IOException {
+    return scan(rangeX, rangeY, block);
   }
 
   public double distanceFrom(Point point) {
@@ -161,6 +456,34 @@ public class Bucket {
         rangeY.farthestFrom(point.y));
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Bucket)) {
+      return false;
+    }
+    Bucket that = (Bucket) obj;
+    return Arrays.equals(this.startRow, that.startRow)
+        && Arrays.equals(this.stopRow, that.stopRow);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(startRow) + Arrays.hashCode(stopRow);
+  }
+
   /*
    * (non-Javadoc)
    * 
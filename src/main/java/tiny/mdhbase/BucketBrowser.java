@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BucketBrowser
+ * 
+ * BucketBrowser enumerates buckets in ascending order of their distances from
+ * a query point, each part of the space exactly once.
+ * 
+ * The space is browsed as a binary tree of sub-spaces named after the common
+ * prefix naming scheme. Sub-spaces are kept in a priority queue ordered by
+ * their distances from the query point. A sub-space taken from the queue is
+ * either a bucket of the index, or halved and put back. Buckets are looked up
+ * in the bucket directory, so browsing needs no index scan.
+ * 
+ * A bucket is returned for the sub-space it was found for, see
+ * {@link #cellRanges()}. If buckets are merged while browsing, a merged bucket
+ * is found for several disjoint sub-spaces, and scanning it only within each
+ * sub-space still scans every point at most once.
+ * 
+ * @author shoji
+ * 
+ */
+class BucketBrowser {
+
+  /**
+   * a sub-space [key, prefix length] and its distance from the query point.
+   */
+  private static class Cell {
+    final long key;
+    final int prefixLength;
+    final Range[] ranges;
+    final double distance;
+
+    Cell(long key, int prefixLength, Range[] ranges, double distance) {
+      this.key = key;
+      this.prefixLength = prefixLength;
+      this.ranges = ranges;
+      this.distance = distance;
+    }
+  }
+
+  private final Index index;
+
+  private final Point point;
+
+  private final PriorityQueue<Cell> queue = new PriorityQueue<Cell>(11,
+      new Comparator<Cell>() {
+
+        @Override
+        public int compare(Cell o1, Cell o2) {
+          return Double.compare(o1.distance, o2.distance);
+        }
+
+      });
+
+  // the sub-space of the last returned bucket
+  private Cell last = null;
+
+  /**
+   * 
+   * @param index
+   * @param point
+   *          the query point
+   */
+  BucketBrowser(Index index, Point point) {
+    this.index = index;
+    this.point = point;
+    queue.add(newCell(Bytes.toLong(Index.ROOT_KEY),
+        Index.ROOT_PREFIX_LENGTH));
+  }
+
+  /**
+   * 
+   * @return a lower bound of the distance of the next bucket from the query
+   *         point, or positive infinity if no bucket is left
+   */
+  double nextDistance() {
+    Cell cell = queue.peek();
+    return cell == null ? Double.POSITIVE_INFINITY : cell.distance;
+  }
+
+  /**
+   * 
+   * @return the nearest bucket which has not been returned yet, or null if no
+   *         bucket is left
+   * @throws IOException
+   */
+  Bucket next() throws IOException {
+    for (Cell cell = queue.poll(); cell != null; cell = queue.poll()) {
+      Bucket bucket = index.fetchBucket(Bytes.toBytes(cell.key));
+      if (bucket.getPrefixLength() <= cell.prefixLength) {
+        last = cell;
+        return bucket;
+      }
+      // the cell holds more than one bucket. ex. [01*****] -> [010****] and
+      // [011****]
+      int childLength = cell.prefixLength + 1;
+      queue.add(newCell(cell.key, childLength));
+      queue.add(newCell(cell.key | (1L << (64 - childLength)), childLength));
+    }
+    return null;
+  }
+
+  /**
+   * 
+   * @return the ranges on x and y of the sub-space the last returned bucket was
+   *         found for. The bucket must be scanned only within them, since it
+   *         may also cover sub-spaces which are returned separately.
+   */
+  Range[] cellRanges() {
+    return last.ranges;
+  }
+
+  private Cell newCell(long key, int prefixLength) {
+    Range[] ranges = Index.toRanges(key, prefixLength);
+    double dx = ranges[0].distanceFrom(point.x);
+    double dy = ranges[1].distanceFrom(point.y);
+    return new Cell(key, prefixLength, ranges, Math.sqrt(dx * dx + dy * dy));
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BucketDirectory
+ *
+ * BucketDirectory is a client-side copy of the index table. It maps bucket
+ * keys to their prefix lengths so that the bucket which holds a row is found
+ * without a round trip to the index table.
+ *
+ * The directory is loaded lazily. Every split and merge bumps the generation
+ * cell of the index table, and the directory reloads itself when it observes a
+ * generation different from the one it was loaded at. The generation is
+ * checked at most once per refresh interval, so a split made by another client
+ * may be noticed up to one interval late. Counter updates detect a stale
+ * bucket by the prefix tag of its row and count their points again, see
+ * {@link Index#updateCounters}. Rows of the index table without a
+ * prefix length are counters left by updates to merged buckets, and are not
+ * buckets.
+ *
+ * @author shoji
+ *
+ */
+class BucketDirectory {
+
+  private final TableHandle indexTable;
+
+  private final long refreshInterval;
+
+  private NavigableMap<byte[], Integer> buckets = null;
+
+  private long generation = -1L;
+
+  private long lastValidated = 0L;
+
+  /**
+   *
+   * @param indexTable
+   *          the index table the directory mirrors
+   * @param refreshInterval
+   *          milliseconds between generation checks
+   */
+  BucketDirectory(TableHandle indexTable, long refreshInterval) {
+    this.indexTable = indexTable;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * looks up the bucket which holds the queried row.
+   *
+   * @param row
+   *          a queried row key
+   * @return a pair of the bucket key and its prefix length
+   * @throws IOException
+   */
+  synchronized Entry<byte[], Integer> lookup(byte[] row) throws IOException {
+    validate();
+    return buckets.floorEntry(row);
+  }
+
+  /**
+   * records a split made by this client. The directory is updated in place if
+   * no other split happened since the last load, and invalidated otherwise.
+   *
+   * @param newBuckets
+   *          keys and prefix lengths of the new buckets
+   * @param newGeneration
+   *          the generation returned by bumping the generation cell
+   */
+  synchronized void splitted(Map<byte[], Integer> newBuckets,
+      long newGeneration) {
+    if (buckets != null && newGeneration == generation + 1) {
+      buckets.putAll(newBuckets);
+      generation = newGeneration;
+    } else {
+      invalidate();
+    }
+  }
+
+  /**
+   * records a merge made by this client, like {@link #splitted(Map, long)}.
+   *
+   * @param mergedKey
+   *          the key of the merged bucket, which is the key of its lower half
+   * @param prefixLength
+   *          the prefix length of the merged bucket
+   * @param upperKey
+   *          the key of the upper half, which no longer exists
+   * @param newGeneration
+   *          the generation returned by bumping the generation cell
+   */
+  synchronized void merged(byte[] mergedKey, int prefixLength,
+      byte[] upperKey, long newGeneration) {
+    if (buckets != null && newGeneration == generation + 1) {
+      buckets.remove(upperKey);
+      buckets.put(mergedKey, prefixLength);
+      generation = newGeneration;
+    } else {
+      invalidate();
+    }
+  }
+
+  synchronized void invalidate() {
+    buckets = null;
+  }
+
+  private void validate() throws IOException {
+    long now = System.currentTimeMillis();
+    if (buckets != null && now - lastValidated < refreshInterval) {
+      return;
+    }
+    long current = readGeneration();
+    lastValidated = now;
+    if (buckets == null || current != generation) {
+      load(current);
+    }
+  }
+
+  private long readGeneration() throws IOException {
+    Get get = new Get(Index.ROOT_KEY);
+    get.addColumn(Index.FAMILY_INFO, Index.COLUMN_GENERATION);
+    byte[] value = indexTable.get().get(get).getValue(Index.FAMILY_INFO,
+        Index.COLUMN_GENERATION);
+    return value == null ? 0L : Bytes.toLong(value);
+  }
+
+  /*
+   * the generation is read before the scan, so a split racing with the scan
+   * makes the next validation reload the directory again.
+   */
+  private void load(long current) throws IOException {
+    NavigableMap<byte[], Integer> loaded = new TreeMap<byte[], Integer>(
+        Bytes.BYTES_COMPARATOR);
+    Scan scan = new Scan();
+    scan.addColumn(Index.FAMILY_INFO, Index.COLUMN_PREFIX_LENGTH);
+    scan.setCaching(1000);
+    ResultScanner results = indexTable.get().getScanner(scan);
+    try {
+      for (Result result : results) {
+        int pl = Bytes.toInt(result.getValue(Index.FAMILY_INFO,
+            Index.COLUMN_PREFIX_LENGTH));
+        loaded.put(result.getRow(), pl);
+      }
+    } finally {
+      results.close();
+    }
+    buckets = loaded;
+    generation = current;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+
+import com.google.common.io.Closeables;
+
+/**
+ * BucketPacker
+ * 
+ * BucketPacker is the background compactor of a data table which packs
+ * buckets. Every pass over the index packs the buckets which did not change
+ * for the cold age into chunks, see {@link Index#packColdBuckets(long)}, so
+ * read-mostly buckets are scanned as a few cells. Points inserted later stay as
+ * cells until the next pass after the bucket cools down again.
+ * 
+ * Clients never pack in the background. A single packer should run per table,
+ * either embedded in an application or standalone with {@link #main(String[])}.
+ * 
+ * @author shoji
+ * 
+ */
+public class BucketPacker implements Closeable {
+
+  private static final Log LOG = LogFactory.getLog(BucketPacker.class);
+
+  private final Index index;
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * starts packing the buckets of an existing table every
+   * tiny.mdhbase.pack.interval milliseconds.
+   * 
+   * @param config
+   * @param tableName
+   * @throws IOException
+   *           if the table does not exist or does not pack its buckets
+   */
+  public BucketPacker(Configuration config, String tableName)
+      throws IOException {
+    long interval = config.getLong(Index.PACK_INTERVAL_KEY,
+        Index.DEFAULT_PACK_INTERVAL);
+    final long coldAge = config.getLong(Index.PACK_COLD_AGE_KEY,
+        Index.DEFAULT_PACK_COLD_AGE);
+    if (interval <= 0) {
+      throw new IllegalArgumentException(Index.PACK_INTERVAL_KEY
+          + " must be positive: " + interval);
+    }
+    HBaseAdmin admin = new HBaseAdmin(config);
+    try {
+      if (!admin.tableExists(tableName)) {
+        throw new IOException("no such table: " + tableName);
+      }
+    } finally {
+      Closeables.closeQuietly(admin);
+    }
+    // the packer neither inserts nor deletes points, so buckets are never
+    // split or merged by it
+    this.index = new Index(config, tableName, Integer.MAX_VALUE);
+    if (!index.isPacking()) {
+      index.close();
+      throw new IOException("table " + tableName
+          + " was not created with " + Index.PACKING_KEY);
+    }
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("mdhbase-pack"));
+    executor.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          int packed = index.packColdBuckets(coldAge);
+          if (packed > 0) {
+            LOG.info("packed " + packed + " buckets");
+          }
+        } catch (IOException e) {
+          LOG.warn("failed to pack buckets", e);
+        }
+      }
+
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    index.close();
+  }
+
+  /**
+   * packs the buckets of a table until the process is stopped.
+   * 
+   * @param args
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException,
+      InterruptedException {
+    if (args.length < 1) {
+      System.out.println("Usage: BucketPacker table");
+      return;
+    }
+    final BucketPacker packer = new BucketPacker(HBaseConfiguration.create(),
+        args[0]);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          packer.close();
+        } catch (IOException e) {
+          LOG.warn("failed to close the packer", e);
+        }
+      }
+
+    });
+    packer.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.ConstantSizeRegionSplitPolicy;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BucketSplitPolicy
+ * 
+ * BucketSplitPolicy splits regions of the data table only at bucket keys, so
+ * the rows of a bucket always stay in one region. The split point chosen by
+ * HBase is moved back to the key of the bucket which holds it, or forward to
+ * the next bucket key if that bucket starts the region. A region which holds
+ * a part of a single bucket is not split until the bucket itself is split.
+ * 
+ * Like ConstantSizeRegionSplitPolicy, regions are split when a store grows
+ * over the maximum file size.
+ * 
+ * @author shoji
+ * 
+ */
+public class BucketSplitPolicy extends ConstantSizeRegionSplitPolicy {
+
+  private static final Log LOG = LogFactory.getLog(BucketSplitPolicy.class);
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.hbase.regionserver.RegionSplitPolicy#getSplitPoint()
+   */
+  @Override
+  protected byte[] getSplitPoint() {
+    byte[] splitPoint = super.getSplitPoint();
+    if (splitPoint == null) {
+      return null;
+    }
+    try {
+      return snapToBucket(splitPoint);
+    } catch (IOException e) {
+      // the raw split point may fall inside a bucket, so wait for the next
+      // check rather than split there
+      LOG.warn("failed to look up buckets at "
+          + Bytes.toStringBinary(splitPoint), e);
+      return null;
+    }
+  }
+
+  private byte[] snapToBucket(byte[] splitPoint) throws IOException {
+    byte[] startKey = region.getRegionInfo().getStartKey();
+    byte[] endKey = region.getRegionInfo().getEndKey();
+    if (startKey.length == 0) {
+      // the root bucket always starts the first region
+      startKey = Index.ROOT_KEY;
+    }
+    final HTable indexTable = new HTable(region.getConf(), region
+        .getTableDesc().getNameAsString() + "_index");
+    try {
+      return snapToBucket(new IndexRows() {
+
+        @Override
+        public Result rowOrBefore(byte[] row) throws IOException {
+          return indexTable.getRowOrBefore(row, Index.FAMILY_INFO);
+        }
+
+        @Override
+        public Result rowOrAfter(byte[] row, byte[] stopRow)
+            throws IOException {
+          Scan scan = new Scan(row, stopRow);
+          scan.addFamily(Index.FAMILY_INFO);
+          scan.setCaching(1);
+          ResultScanner scanner = indexTable.getScanner(scan);
+          try {
+            return scanner.next();
+          } finally {
+            scanner.close();
+          }
+        }
+
+      }, splitPoint, startKey, endKey);
+    } finally {
+      indexTable.close();
+    }
+  }
+
+  /*
+   * reads rows of the index table
+   */
+  interface IndexRows {
+    /*
+     * the row at or before the given row, or null
+     */
+    Result rowOrBefore(byte[] row) throws IOException;
+
+    /*
+     * the row at or after the given row and before the stop row, which is
+     * empty for the end of the table, or null
+     */
+    Result rowOrAfter(byte[] row, byte[] stopRow) throws IOException;
+  }
+
+  /*
+   * the key of the bucket which holds the split point if it starts after the
+   * region start, or else the key of the next bucket in the region. Rows
+   * without a prefix length are counters left over by merges, not buckets, so
+   * they are passed over.
+   */
+  static byte[] snapToBucket(IndexRows rows, byte[] splitPoint,
+      byte[] startKey, byte[] endKey) throws IOException {
+    Result entry = rows.rowOrBefore(splitPoint);
+    while (entry != null
+        && Bytes.compareTo(entry.getRow(), startKey) > 0) {
+      if (isBucket(entry)) {
+        return entry.getRow();
+      }
+      entry = rows.rowOrBefore(Bytes.toBytes(Bytes.toLong(entry.getRow()) - 1));
+    }
+    byte[] row = splitPoint;
+    while ((entry = rows.rowOrAfter(row, endKey)) != null) {
+      if (isBucket(entry)) {
+        return entry.getRow();
+      }
+      row = Bytes.toBytes(Bytes.toLong(entry.getRow()) + 1);
+    }
+    return null;
+  }
+
+  private static boolean isBucket(Result entry) {
+    return entry.containsColumn(Index.FAMILY_INFO,
+        Index.COLUMN_PREFIX_LENGTH);
+  }
+}
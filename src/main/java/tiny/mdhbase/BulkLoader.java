@@ -0,0 +1,374 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.Closeables;
+
+/**
+ * BulkLoader
+ * 
+ * BulkLoader loads points into new tables without going through the insertion
+ * path. Points are sorted by row key with an external sort, then the bucket
+ * partition is derived from the sorted keys in a single pass, bottom-up: each
+ * bucket is the largest sub-space which holds no more points than the split
+ * threshold. Points and index entries are written as HFiles in key order and
+ * handed to LoadIncrementalHFiles, so loading costs sequential I/O instead of
+ * RPCs and splits per point.
+ * 
+ * @author shoji
+ * 
+ */
+public class BulkLoader {
+
+  /**
+   * the number of points sorted in memory at once
+   */
+  public static final String SORT_BUFFER_KEY = "tiny.mdhbase.bulk.sort.buffer";
+
+  public static final int DEFAULT_SORT_BUFFER = 1 << 22;
+
+  /**
+   * a local directory for sorted runs
+   */
+  public static final String TMP_DIR_KEY = "tiny.mdhbase.bulk.tmp.dir";
+
+  private final Configuration config;
+
+  private final String tableName;
+
+  private final int splitThreshold;
+
+  public BulkLoader(Configuration config, String tableName,
+      int splitThreshold) {
+    this.config = config;
+    this.tableName = tableName;
+    this.splitThreshold = splitThreshold;
+  }
+
+  /**
+   * loads points into new tables.
+   * 
+   * @param points
+   * @param output
+   *          a directory for HFiles, which must not exist
+   * @throws IOException
+   *           if the tables already exist
+   */
+  public void load(Iterable<Point> points, Path output) throws IOException {
+    HBaseAdmin admin = new HBaseAdmin(config);
+    try {
+      if (admin.tableExists(tableName)
+          || admin.tableExists(tableName + "_index")) {
+        throw new IOException("table " + tableName + " already exists");
+      }
+    } finally {
+      admin.close();
+    }
+    // the tables are created first, so the loaded entries are newer than the
+    // root entry written on creation.
+    Index created = new Index(config, tableName, splitThreshold);
+    PointFormat format = created.getPointFormat();
+    created.close();
+
+    ExternalSorter sorter = new ExternalSorter(new File(config.get(
+        TMP_DIR_KEY, System.getProperty("java.io.tmpdir"))), config.getInt(
+        SORT_BUFFER_KEY, DEFAULT_SORT_BUFFER));
+    try {
+      for (Point p : points) {
+        sorter.add(ZOrder.zip(p.x, p.y), p.id);
+      }
+      ExternalSorter.Reader sorted = sorter.sort();
+      try {
+        writeHFiles(sorted, format, output);
+      } finally {
+        sorted.close();
+      }
+    } finally {
+      sorter.close();
+    }
+
+    LoadIncrementalHFiles loader;
+    try {
+      loader = new LoadIncrementalHFiles(config);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+    HTable dataTable = new HTable(config, tableName);
+    try {
+      loader.doBulkLoad(new Path(output, "data"), dataTable);
+    } finally {
+      dataTable.close();
+    }
+    HTable indexTable = new HTable(config, tableName + "_index");
+    try {
+      loader.doBulkLoad(new Path(output, "index"), indexTable);
+    } finally {
+      indexTable.close();
+    }
+  }
+
+  /*
+   * sorted pairs are read ahead by one more than the split threshold, which is
+   * enough to decide whether a sub-space must be split.
+   */
+  private void writeHFiles(ExternalSorter.Reader sorted, PointFormat format,
+      Path output) throws IOException {
+    FileSystem fs = output.getFileSystem(config);
+    long timestamp = System.currentTimeMillis();
+    HFile.Writer data = createWriter(fs, new Path(new Path(output, "data"),
+        Bytes.toString(Bucket.FAMILY)), timestamp);
+    HFile.Writer index = createWriter(fs, new Path(new Path(output, "index"),
+        Bytes.toString(Index.FAMILY_INFO)), timestamp);
+    try {
+      SplitPlanner planner = new SplitPlanner(splitThreshold);
+      Lookahead lookahead = new Lookahead(sorted, splitThreshold + 1);
+      for (long start = 0L; start != Index.END_KEY;) {
+        lookahead.fill();
+        int prefixLength = planner.planFromSortedKeys(start, lookahead.keys,
+            lookahead.from, lookahead.to);
+        long last = ZOrder.lastKey(start, prefixLength);
+        int depth = Math.min(Index.MAX_COUNTER_DEPTH, 64 - prefixLength);
+        long[] counts = new long[1 << depth];
+        Put row = null;
+        // a bucket at the maximum prefix length may hold more points than
+        // the lookahead
+        while (lookahead.fillIfEmpty()
+            && lookahead.keys[lookahead.from] <= last) {
+          long key = lookahead.keys[lookahead.from];
+          Point p = new Point(lookahead.ids[lookahead.from],
+              ZOrder.unzipX(key), ZOrder.unzipY(key));
+          if (row != null && Bytes.toLong(row.getRow()) != key) {
+            appendSorted(data, row, Bucket.FAMILY, timestamp);
+            row = null;
+          }
+          if (row == null) {
+            row = new Put(Bytes.toBytes(key));
+          }
+          row.add(Bucket.FAMILY, format.toQualifier(p.id), format.toValue(p));
+          counts[depth == 0 ? 0 : (int) ((key - start) >>> (64
+              - prefixLength - depth))]++;
+          lookahead.from++;
+        }
+        if (row != null) {
+          appendSorted(data, row, Bucket.FAMILY, timestamp);
+        }
+        Put entry = Index.toIndexEntry(Bytes.toBytes(start), prefixLength,
+            counts, depth);
+        if (start == 0L) {
+          // the generation differs from that of an empty index, so clients
+          // which saw the empty index reload their directories
+          entry.add(Index.FAMILY_INFO, Index.COLUMN_GENERATION,
+              Bytes.toBytes(1L));
+        }
+        appendSorted(index, entry, Index.FAMILY_INFO, timestamp);
+        start = last + 1;
+      }
+    } finally {
+      data.close();
+      index.close();
+    }
+  }
+
+  private HFile.Writer createWriter(FileSystem fs, Path familyDir,
+      long timestamp) throws IOException {
+    fs.mkdirs(familyDir);
+    HFile.Writer writer = HFile.getWriterFactory(config,
+        new CacheConfig(config)).createWriter(fs, new Path(familyDir,
+        "bulk" + timestamp), HFile.DEFAULT_BLOCKSIZE,
+        Compression.Algorithm.NONE, KeyValue.KEY_COMPARATOR);
+    writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY,
+        Bytes.toBytes(timestamp));
+    writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+    return writer;
+  }
+
+  /*
+   * an HFile requires the columns of a row in order. Neither ids encoded as
+   * varints nor negative ids sort as their qualifiers do.
+   */
+  private void appendSorted(HFile.Writer writer, Put put, byte[] family,
+      long timestamp) throws IOException {
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    for (KeyValue kv : put.getFamilyMap().get(family)) {
+      kvs.add(new KeyValue(put.getRow(), family, kv.getQualifier(),
+          timestamp, kv.getValue()));
+    }
+    Collections.sort(kvs, new Comparator<KeyValue>() {
+
+      @Override
+      public int compare(KeyValue o1, KeyValue o2) {
+        return Bytes.compareTo(o1.getQualifier(), o2.getQualifier());
+      }
+
+    });
+    for (KeyValue kv : kvs) {
+      writer.append(kv);
+    }
+  }
+
+  /**
+   * a window of sorted pairs, without duplicates. The arrays hold twice the
+   * window, and consumed pairs are dropped only once half of them is consumed,
+   * so each pair is copied at most once.
+   */
+  private static class Lookahead {
+    final ExternalSorter.Reader sorted;
+    final long[] keys;
+    final long[] ids;
+    final int size;
+    int from = 0;
+    int to = 0;
+    boolean more = true;
+    // the last point read, which may be consumed already
+    private boolean hasLast = false;
+    private long lastKey;
+    private long lastId;
+
+    Lookahead(ExternalSorter.Reader sorted, int size) {
+      this.sorted = sorted;
+      this.size = size;
+      this.keys = new long[2 * size];
+      this.ids = new long[2 * size];
+    }
+
+    /*
+     * reads pairs until the window from the first unconsumed pair is full
+     */
+    void fill() throws IOException {
+      if (from >= size) {
+        System.arraycopy(keys, from, keys, 0, to - from);
+        System.arraycopy(ids, from, ids, 0, to - from);
+        to -= from;
+        from = 0;
+      }
+      int limit = from + size;
+      while (more && to < limit) {
+        more = sorted.next();
+        if (more) {
+          long key = sorted.key();
+          long id = sorted.id();
+          if (hasLast && lastKey == key && lastId == id) {
+            continue; // the same point appears twice
+          }
+          keys[to] = key;
+          ids[to] = id;
+          to++;
+          hasLast = true;
+          lastKey = key;
+          lastId = id;
+        }
+      }
+    }
+
+    boolean fillIfEmpty() throws IOException {
+      if (from == to) {
+        fill();
+      }
+      return from < to;
+    }
+  }
+
+  /*
+   * reads points from a text file of lines "id x y". The file is closed at its
+   * end, or when a line cannot be read.
+   */
+  private static Iterable<Point> readPoints(final File file) {
+    return new Iterable<Point>() {
+
+      @Override
+      public Iterator<Point> iterator() {
+        final BufferedReader in;
+        try {
+          in = new BufferedReader(new FileReader(file));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return new AbstractIterator<Point>() {
+
+          @Override
+          protected Point computeNext() {
+            try {
+              String line;
+              do {
+                line = in.readLine();
+                if (line == null) {
+                  in.close();
+                  return endOfData();
+                }
+                line = line.trim();
+              } while (line.length() == 0);
+              String[] fields = line.split("[,\\s]+");
+              return new Point(Long.parseLong(fields[0]),
+                  Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+            } catch (IOException e) {
+              Closeables.closeQuietly(in);
+              throw new RuntimeException(e);
+            } catch (RuntimeException e) {
+              // a malformed line
+              Closeables.closeQuietly(in);
+              throw e;
+            }
+          }
+
+        };
+      }
+
+    };
+  }
+
+  /**
+   * 
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.out.println("Usage: BulkLoader table splitThreshold input output");
+      System.out.println(" input\ta text file of lines \"id x y\"");
+      System.out.println(" output\ta directory for HFiles");
+      return;
+    }
+    BulkLoader loader = new BulkLoader(HBaseConfiguration.create(), args[0],
+        Integer.parseInt(args[1]));
+    loader.load(readPoints(new File(args[2])), new Path(args[3]));
+  }
+}
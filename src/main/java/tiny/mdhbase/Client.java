@@ -17,24 +17,33 @@ package tiny.mdhbase;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 
-import com.google.common.collect.Iterables;
+import tiny.mdhbase.Index.BucketScanner;
+
 import com.google.common.io.Closeables;
 
 /**
@@ -45,23 +54,189 @@ import com.google.common.io.Closeables;
  */
 public class Client implements Closeable {
 
+  /**
+   * the number of points sent in a single batch by
+   * {@link #insertAll(Iterable)}
+   */
+  public static final String INSERT_BATCH_SIZE_KEY =
+      "tiny.mdhbase.insert.batch.size";
+
+  public static final int DEFAULT_INSERT_BATCH_SIZE = 1000;
+
+  // the capacity of blocks behind point scanners
+  private static final int SCAN_BLOCK_CAPACITY = 256;
+
+  /**
+   * the number of threads which scan buckets for range queries. 0 scans
+   * buckets one after another in the calling thread.
+   */
+  public static final String QUERY_THREADS_KEY = "tiny.mdhbase.query.threads";
+
+  public static final int DEFAULT_QUERY_THREADS = 8;
+
+  /**
+   * the maximum number of buckets a single range query scans at the same time
+   */
+  public static final String QUERY_CONCURRENCY_KEY =
+      "tiny.mdhbase.query.concurrency";
+
+  public static final int DEFAULT_QUERY_CONCURRENCY = 4;
+
   private final Index index;
 
+  private final Metrics metrics;
+
+  private final int insertBatchSize;
+
+  private final ExecutorService queryExecutor;
+
+  private final boolean ownsQueryExecutor;
+
+  private final int queryConcurrency;
+
   public Client(String tableName, int splitThreshold) throws IOException {
-    this.index = new Index(HBaseConfiguration.create(), tableName,
-        splitThreshold);
+    this(HBaseConfiguration.create(), tableName, splitThreshold);
+  }
+
+  public Client(Configuration config, String tableName, int splitThreshold)
+      throws IOException {
+    this(config, tableName, splitThreshold, RegionSplits.uniform(config
+        .getInt(Index.PRESPLIT_REGIONS_KEY, Index.DEFAULT_PRESPLIT_REGIONS)));
+  }
+
+  /**
+   * 
+   * @param config
+   * @param tableName
+   * @param splitThreshold
+   * @param splitKeys
+   *          keys to pre-split a new data table. See {@link RegionSplits}.
+   * @throws IOException
+   */
+  public Client(Configuration config, String tableName, int splitThreshold,
+      byte[][] splitKeys) throws IOException {
+    this(config, tableName, splitThreshold, splitKeys, null);
+  }
+
+  /*
+   * buckets are scanned on the given executor, which is shared with other
+   * clients and left running on close. A null executor creates one of
+   * tiny.mdhbase.query.threads threads.
+   */
+  Client(Configuration config, String tableName, int splitThreshold,
+      byte[][] splitKeys, ExecutorService sharedExecutor) throws IOException {
+    this.index = new Index(config, tableName, splitThreshold, splitKeys);
+    this.metrics = index.getMetrics();
+    this.insertBatchSize = config.getInt(INSERT_BATCH_SIZE_KEY,
+        DEFAULT_INSERT_BATCH_SIZE);
+    int queryThreads = config.getInt(QUERY_THREADS_KEY, DEFAULT_QUERY_THREADS);
+    if (sharedExecutor != null) {
+      this.queryExecutor = sharedExecutor;
+    } else if (queryThreads > 0) {
+      this.queryExecutor = Executors.newFixedThreadPool(queryThreads,
+          new DaemonThreadFactory("mdhbase-query"));
+    } else {
+      this.queryExecutor = null;
+    }
+    this.ownsQueryExecutor = sharedExecutor == null;
+    this.queryConcurrency = Math.max(1, config.getInt(QUERY_CONCURRENCY_KEY,
+        DEFAULT_QUERY_CONCURRENCY));
   }
 
   public void insert(Point p) throws IOException {
+    long start = metrics.start();
     byte[] row = Utils.bitwiseZip(p.x, p.y);
     Bucket bucket = index.fetchBucket(row);
     bucket.insert(row, p);
+    metrics.stop(Metrics.INSERT, start);
+  }
+
+  /**
+   * deletes a point. The bucket which held the point is merged with its
+   * sibling if they become underfull.
+   * 
+   * @param p
+   *          the point to delete, matched by its id and location
+   * @return true if the point was stored and is deleted
+   * @throws IOException
+   */
+  public boolean delete(Point p) throws IOException {
+    long start = metrics.start();
+    byte[] row = Utils.bitwiseZip(p.x, p.y);
+    Bucket bucket = index.fetchBucket(row);
+    boolean deleted = bucket.delete(row, p);
+    metrics.stop(Metrics.DELETE, start);
+    return deleted;
+  }
+
+  /**
+   * inserts points in batches. The points of a batch are grouped by bucket and
+   * written with a single multi-put, and the size of each touched bucket is
+   * updated once per batch.
+   * 
+   * @param points
+   * @throws IOException
+   */
+  public void insertAll(Iterable<Point> points) throws IOException {
+    Map<Bucket, List<Put>> batch = new HashMap<Bucket, List<Put>>();
+    int batched = 0;
+    for (Point p : points) {
+      byte[] row = Utils.bitwiseZip(p.x, p.y);
+      Bucket bucket = index.fetchBucket(row);
+      List<Put> puts = batch.get(bucket);
+      if (puts == null) {
+        puts = new ArrayList<Put>();
+        batch.put(bucket, puts);
+      }
+      puts.add(bucket.toPut(row, p));
+      if (++batched == insertBatchSize) {
+        index.insert(batch);
+        batch.clear();
+        batched = 0;
+      }
+    }
+    if (batched > 0) {
+      index.insert(batch);
+    }
+  }
+
+  /**
+   * 
+   * @return the number of buckets waiting to be split
+   */
+  public int getSplitQueueDepth() {
+    return index.getSplitQueueDepth();
+  }
+
+  /**
+   * packs the buckets which did not change for the given time into chunks,
+   * besides a running {@link BucketPacker}. Does nothing unless the table was
+   * created with tiny.mdhbase.packing.
+   * 
+   * @param coldAge
+   *          milliseconds a bucket must be left unchanged
+   * @return the number of packed buckets
+   * @throws IOException
+   */
+  public int packColdBuckets(long coldAge) throws IOException {
+    return index.packColdBuckets(coldAge);
   }
 
   public Iterable<Point> get(int x, int y) throws IOException {
+    long start = metrics.start();
     byte[] row = Utils.bitwiseZip(x, y);
     Bucket bucket = index.fetchBucket(row);
-    return bucket.get(row);
+    Iterable<Point> points = bucket.get(row);
+    metrics.stop(Metrics.GET, start);
+    return points;
+  }
+
+  /**
+   * 
+   * @return the metrics of this client
+   */
+  public Metrics getMetrics() {
+    return metrics;
   }
 
   /**
@@ -74,81 +249,326 @@ public class Client implements Closeable {
    * @throws IOException
    */
   public Iterable<Point> rangeQuery(Range rx, Range ry) throws IOException {
-    Iterable<Bucket> buckets = index.findBucketsInRange(rx, ry);
-    List<Point> results = new LinkedList<Point>();
-    for (Bucket bucket : buckets) {
-      results.addAll(bucket.scan(rx, ry));
-    }
-    return results;
+    return rangeQuery(rx, ry, new PointBlock()).asList();
   }
 
   /**
+   * collects points within the query region into the block. The block is
+   * cleared first and grows to hold all the points, so a caller which reuses
+   * the block for its queries allocates nothing per point.
    * 
-   * @param point
-   * @param k
-   * @return
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @param block
+   *          receives the points within the query region
+   * @return the block
    * @throws IOException
    */
-  public Iterable<Point> nearestNeighbor(final Point point, int k)
+  public PointBlock rangeQuery(Range rx, Range ry, PointBlock block)
       throws IOException {
-    NavigableSet<Point> results = new TreeSet<Point>(new Comparator<Point>() {
+    long start = metrics.start();
+    block.clear();
+    try {
+      if (queryExecutor == null) {
+        for (Bucket bucket : index.findBucketsInRange(rx, ry)) {
+          bucket.scan(rx, ry, block);
+        }
+        return block;
+      }
+      BucketScanner buckets = index.scanBuckets(rx, ry);
+      try {
+        scanInParallel(buckets, rx, ry, block);
+        return block;
+      } finally {
+        buckets.close();
+      }
+    } finally {
+      metrics.stop(Metrics.RANGE_QUERY, start);
+    }
+  }
+
+  /**
+   * opens a scanner over points within the query region. Unlike
+   * {@link #rangeQuery(Range, Range)}, which collects all points first, the
+   * scanner streams points bucket by bucket as they are consumed, so a query
+   * of any size runs in constant memory.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @return a scanner which must be closed
+   * @throws IOException
+   */
+  public PointScanner scan(final Range rx, final Range ry) throws IOException {
+    final BlockScanner blocks = scanBlocks(rx, ry);
+    return new AbstractPointScanner() {
+      private final PointBlock block = new PointBlock(SCAN_BLOCK_CAPACITY);
+      private int next = 0;
 
       @Override
-      public int compare(Point o1, Point o2) {
-        return Double.compare(point.distanceFrom(o1), point.distanceFrom(o2));
+      public Point next() throws IOException {
+        if (next == block.size()) {
+          if (!blocks.next(block)) {
+            return null;
+          }
+          next = 0;
+        }
+        return block.get(next++);
       }
 
-    });
+      @Override
+      public void close() {
+        blocks.close();
+      }
 
-    PriorityQueue<Bucket> queue = new PriorityQueue<Bucket>(Integer.MAX_VALUE,
-        new Comparator<Bucket>() {
+    };
+  }
 
-          @Override
-          public int compare(Bucket o1, Bucket o2) {
-            return Double.compare(o1.distanceFrom(point),
-                o2.distanceFrom(point));
-          }
+  /**
+   * opens a scanner which streams points within the query region into blocks
+   * supplied by the caller. A block may hold points of several buckets.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @return a scanner which must be closed
+   * @throws IOException
+   */
+  public BlockScanner scanBlocks(final Range rx, final Range ry)
+      throws IOException {
+    final BucketScanner buckets = index.scanBuckets(rx, ry);
+    return new BlockScanner() {
+      private Bucket.RowBlockScanner current = null;
 
-        });
+      @Override
+      public boolean next(PointBlock block) throws IOException {
+        block.clear();
+        while (!block.isFull()) {
+          if (current == null) {
+            Bucket bucket = buckets.next();
+            if (bucket == null) {
+              break;
+            }
+            current = bucket.blockScanner(rx, ry);
+          }
+          if (!current.fill(block, block.capacity())) {
+            current.close();
+            current = null;
+          }
+        }
+        return !block.isEmpty();
+      }
 
-    double farthest = Double.MAX_VALUE;
-    int offset = 0;
-    Set<String> scannedBucketNames = new HashSet<String>();
-    do {
-      Iterable<Bucket> buckets = index.findBucketsInRange(new Range(point.x
-          - offset, point.x + offset), new Range(point.y - offset, point.y
-          + offset));
-
-      for (Bucket bucket : buckets) {
-        if (!scannedBucketNames.contains(bucket.toString())) {
-          queue.add(bucket);
+      @Override
+      public void close() {
+        if (current != null) {
+          current.close();
         }
+        buckets.close();
       }
-      if (queue.size() == 0) {
-        return results; // there are no buckets to be scanned.
+
+    };
+  }
+
+  /**
+   * counts points within the query region without fetching them. Buckets which
+   * lie entirely within the query region are counted by their sizes in the
+   * index, and the other buckets are counted on region servers.
+   * 
+   * The sizes in the index are incremented after points are written, so a
+   * count racing with insertions may miss points being inserted.
+   * 
+   * @param rx
+   *          a query range on dimension x
+   * @param ry
+   *          a query range on dimension y
+   * @return the number of points within the query region
+   * @throws IOException
+   */
+  public long rangeCount(Range rx, Range ry) throws IOException {
+    long start = metrics.start();
+    BucketScanner buckets = index.scanBuckets(rx, ry);
+    List<Bucket> partials = new ArrayList<Bucket>();
+    long count = 0L;
+    try {
+      for (Bucket bucket = buckets.next(); bucket != null; bucket = buckets
+          .next()) {
+        if (bucket.within(rx, ry) && bucket.size() >= 0) {
+          count += bucket.size();
+        } else {
+          partials.add(bucket);
+        }
       }
+    } finally {
+      buckets.close();
+    }
+    count += index.countInBuckets(partials, rx, ry);
+    metrics.stop(Metrics.RANGE_COUNT, start);
+    return count;
+  }
 
-      for (Bucket bucket = queue.poll(); bucket != null; bucket = queue.poll()) {
-        if (bucket.distanceFrom(point) > farthest) {
-          return results;
+  /*
+   * scans buckets on the query executor, keeping at most queryConcurrency scans
+   * of this query in flight. Results are merged as scans complete, and the
+   * block of a merged scan is reused by the next scan, so a query allocates at
+   * most queryConcurrency blocks. When a scan fails, the outstanding scans are
+   * cancelled.
+   */
+  private void scanInParallel(BucketScanner buckets, Range rx, Range ry,
+      PointBlock results) throws IOException {
+    CompletionService<PointBlock> completion = new ExecutorCompletionService<PointBlock>(
+        queryExecutor);
+    List<Future<PointBlock>> futures = new ArrayList<Future<PointBlock>>();
+    try {
+      int running = 0;
+      Bucket pending = buckets.next();
+      while (running < queryConcurrency && pending != null) {
+        futures.add(completion.submit(scanTask(pending, rx, ry,
+            newBlock(pending))));
+        running++;
+        pending = buckets.next();
+      }
+      while (running > 0) {
+        Future<PointBlock> done = completion.take();
+        running--;
+        PointBlock block = done.get();
+        results.addAll(block);
+        if (pending != null) {
+          block.clear();
+          futures.add(completion.submit(scanTask(pending, rx, ry, block)));
+          running++;
+          pending = buckets.next();
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("range query was interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      for (Future<PointBlock> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private Callable<PointBlock> scanTask(final Bucket bucket, final Range rx,
+      final Range ry, final PointBlock block) {
+    return new Callable<PointBlock>() {
+
+      @Override
+      public PointBlock call() throws IOException {
+        return bucket.scan(rx, ry, block);
+      }
+
+    };
+  }
+
+  /*
+   * a block for the points of a bucket, sized by the bucket up to the default
+   * capacity. Blocks grow as needed.
+   */
+  private static PointBlock newBlock(Bucket bucket) {
+    long size = bucket.size();
+    return new PointBlock(size < 0 ? PointBlock.DEFAULT_CAPACITY : (int) Math
+        .max(1L, Math.min(size, PointBlock.DEFAULT_CAPACITY)));
+  }
+
+  /**
+   * finds the k nearest points from the query point. Buckets are scanned in
+   * ascending order of their distances from the query point, each part of the
+   * space at most once, until the next bucket is farther than the k-th nearest
+   * point found so far.
+   * Of points at the same distance as the k-th nearest one, those found first
+   * are returned.
+   * 
+   * @param point
+   * @param k
+   * @return the k nearest points in ascending order of their distances
+   * @throws IOException
+   */
+  public Iterable<Point> nearestNeighbor(final Point point, int k)
+      throws IOException {
+    if (k <= 0) {
+      return new ArrayList<Point>();
+    }
+    long start = metrics.start();
+    KnnHeap candidates = new KnnHeap(k);
+    PointBlock block = new PointBlock();
+    BucketBrowser buckets = new BucketBrowser(index, point);
+    double farthest = Double.POSITIVE_INFINITY;
+    int scanned = 0;
+    while (buckets.nextDistance() <= farthest) {
+      Bucket bucket = buckets.next();
+      if (bucket == null) {
+        break;
+      }
+      scanned++;
+      block.clear();
+      Range[] cell = buckets.cellRanges();
+      candidates.offerAll(bucket.scan(cell[0], cell[1], block), point.x,
+          point.y);
+      if (candidates.isFull()) {
+        farthest = Math.sqrt(candidates.maxDistance());
+      }
+    }
+    List<Point> results = candidates.toSortedList();
+    metrics.stop(Metrics.NEAREST_NEIGHBOR, start);
+    metrics.update(Metrics.BUCKETS_PER_QUERY, scanned);
+    return results;
+  }
+
+  /**
+   * opens a scanner which returns points in ascending order of their distances
+   * from the query point. A bucket is scanned only when it may hold the next
+   * nearest point, so taking the first k points scans the same buckets as
+   * {@link #nearestNeighbor(Point, int)}.
+   * 
+   * @param point
+   *          the query point
+   * @return a scanner which must be closed
+   */
+  public PointScanner nearestNeighbors(final Point point) {
+    final BucketBrowser buckets = new BucketBrowser(index, point);
+    final PriorityQueue<Point> candidates = new PriorityQueue<Point>(11,
+        new Comparator<Point>() {
 
-        for (Point p : bucket.scan()) {
-          if (results.size() < k) {
-            results.add(p); // results.size() is at most k.
-          } else {
-            results.add(p);
-            results.pollLast(); // remove the (k+1)-th point.
-            farthest = results.last().distanceFrom(point);
+          @Override
+          public int compare(Point o1, Point o2) {
+            return Double.compare(point.distanceFrom(o1),
+                point.distanceFrom(o2));
           }
+
+        });
+    return new AbstractPointScanner() {
+
+      @Override
+      public Point next() throws IOException {
+        while (candidates.isEmpty()
+            || buckets.nextDistance() < point.distanceFrom(candidates.peek())) {
+          Bucket bucket = buckets.next();
+          if (bucket == null) {
+            break;
+          }
+          Range[] cell = buckets.cellRanges();
+          candidates.addAll(bucket.scan(cell[0], cell[1]));
         }
-        scannedBucketNames.add(bucket.toString());
-        int newOffset = (int) Math.ceil(Math.sqrt(point.distanceFrom(bucket
-            .farthestCornerFrom(point))));
-        offset = Math.max(offset, newOffset);
+        return candidates.poll();
+      }
+
+      @Override
+      public void close() {
       }
-    } while (true);
 
+    };
   }
 
   /*
@@ -158,6 +578,9 @@ public class Client implements Closeable {
    */
   @Override
   public void close() throws IOException {
+    if (queryExecutor != null && ownsQueryExecutor) {
+      queryExecutor.shutdownNow();
+    }
     index.close();
   }
 
@@ -184,6 +607,13 @@ public class Client implements Closeable {
         int y = Integer.parseInt(args[2]);
         Point p = new Point(id, x, y);
         client.insert(p);
+      } else if (args[0].equals("delete")) {
+        int x = Integer.parseInt(args[1]);
+        int y = Integer.parseInt(args[2]);
+        int id = Integer.parseInt(args[3]);
+        if (!client.delete(new Point(id, x, y))) {
+          System.out.println("no such entity");
+        }
       } else if (args[0].equals("get")) {
         int x = Integer.parseInt(args[1]);
         int y = Integer.parseInt(args[2]);
@@ -198,14 +628,18 @@ public class Client implements Closeable {
         int ymax = Integer.parseInt(args[4]);
         System.out.println(String.format("Query Region: [(%d,%d), (%d,%d)]",
             xmin, ymin, xmax, ymax));
-        Iterable<Point> points = client.rangeQuery(new Range(xmin, xmax),
-            new Range(ymin, ymax));
-        System.out.println(String.format("%d hits", Iterables.size(points)));
+        long hits = client.rangeCount(new Range(xmin, xmax), new Range(ymin,
+            ymax));
+        System.out.println(String.format("%d hits", hits));
       } else if (args[0].equals("index")) {
         HTable index = new HTable("Sample_index");
         System.out.println("bucket name: size");
         ResultScanner entries = index.getScanner(Index.FAMILY_INFO);
         for (Result entry : entries) {
+          if (!entry.containsColumn(Index.FAMILY_INFO,
+              Index.COLUMN_PREFIX_LENGTH)) {
+            continue; // counters left by an update to a merged bucket
+          }
           byte[] key = entry.getRow();
           int prefixLength = Bytes.toInt(entry.getValue(Index.FAMILY_INFO,
               Index.COLUMN_PREFIX_LENGTH));
@@ -234,6 +668,7 @@ public class Client implements Closeable {
     StringBuilder buf = new StringBuilder();
     buf.append("Usage: \n");
     buf.append(" put x y [id]\tput an entity at (x,y)\n");
+    buf.append(" delete x y id\tdelete an entity at (x,y)\n");
     buf.append(" get x y\tget points at (x,y)\n");
     buf.append(" count xmin ymin xmax ymax\tcount # of points within region[(xmin,ymin),(xmax,ymax)]\n");
     buf.append(" index\tshow the index entries\n");
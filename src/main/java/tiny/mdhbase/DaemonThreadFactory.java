@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DaemonThreadFactory creates named daemon threads, so that background workers
+ * never keep the JVM alive.
+ * 
+ * @author shoji
+ * 
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+  private final String prefix;
+
+  private final AtomicInteger count = new AtomicInteger();
+
+  DaemonThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+   */
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
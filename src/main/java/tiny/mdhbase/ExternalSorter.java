@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSorter
+ * 
+ * ExternalSorter sorts pairs of a row key and a point id which do not fit in
+ * memory. Pairs are buffered in primitive arrays; a full buffer is sorted and
+ * spilled to a run file, and runs are merged when the pairs are read back.
+ * 
+ * Pairs are ordered by row key, then by id as an unsigned value, which is the
+ * order of the qualifiers of a row in HBase.
+ * 
+ * @author shoji
+ * 
+ */
+class ExternalSorter implements Closeable {
+
+  private final File directory;
+
+  private final long[] keys;
+
+  private final long[] ids;
+
+  private int size = 0;
+
+  private final List<File> runs = new ArrayList<File>();
+
+  /**
+   * a sorted sequence of pairs
+   */
+  interface Reader extends Closeable {
+
+    /**
+     * advances to the next pair.
+     * 
+     * @return false if no pair is left
+     * @throws IOException
+     */
+    boolean next() throws IOException;
+
+    long key();
+
+    long id();
+  }
+
+  /**
+   * 
+   * @param directory
+   *          a local directory for run files
+   * @param bufferSize
+   *          the number of pairs sorted in memory at once
+   */
+  ExternalSorter(File directory, int bufferSize) {
+    this.directory = directory;
+    this.keys = new long[bufferSize];
+    this.ids = new long[bufferSize];
+  }
+
+  void add(long key, long id) throws IOException {
+    if (size == keys.length) {
+      spill();
+    }
+    keys[size] = key;
+    ids[size] = id;
+    size++;
+  }
+
+  /**
+   * 
+   * @return a reader over all pairs added so far, in order
+   * @throws IOException
+   */
+  Reader sort() throws IOException {
+    if (runs.isEmpty()) {
+      sortBuffer();
+      return new BufferReader();
+    }
+    if (size > 0) {
+      spill();
+    }
+    return new MergeReader();
+  }
+
+  private void spill() throws IOException {
+    sortBuffer();
+    File run = File.createTempFile("mdhbase-run", ".bin", directory);
+    runs.add(run);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(run), 1 << 16));
+    try {
+      for (int i = 0; i < size; i++) {
+        out.writeLong(keys[i]);
+        out.writeLong(ids[i]);
+      }
+    } finally {
+      out.close();
+    }
+    size = 0;
+  }
+
+  /*
+   * heap sort on the parallel arrays, which needs no extra memory
+   */
+  private void sortBuffer() {
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(i, size);
+    }
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftDown(int i, int end) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= end) {
+        return;
+      }
+      if (child + 1 < end && less(child, child + 1)) {
+        child++;
+      }
+      if (!less(i, child)) {
+        return;
+      }
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  private boolean less(int i, int j) {
+    return compare(keys[i], ids[i], keys[j], ids[j]) < 0;
+  }
+
+  private void swap(int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+  }
+
+  static int compare(long key1, long id1, long key2, long id2) {
+    if (key1 != key2) {
+      return key1 < key2 ? -1 : 1;
+    }
+    // unsigned comparison
+    long u1 = id1 + Long.MIN_VALUE;
+    long u2 = id2 + Long.MIN_VALUE;
+    return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+  }
+
+  /**
+   * deletes run files.
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() {
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  private class BufferReader implements Reader {
+    private int position = -1;
+
+    @Override
+    public boolean next() {
+      return ++position < size;
+    }
+
+    @Override
+    public long key() {
+      return keys[position];
+    }
+
+    @Override
+    public long id() {
+      return ids[position];
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /*
+   * a run file being merged, positioned at its current pair
+   */
+  private static class Run {
+    final DataInputStream in;
+    long key;
+    long id;
+
+    Run(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file), 1 << 16));
+    }
+
+    boolean advance() throws IOException {
+      try {
+        key = in.readLong();
+      } catch (EOFException e) {
+        return false;
+      }
+      id = in.readLong();
+      return true;
+    }
+  }
+
+  private class MergeReader implements Reader {
+    private final PriorityQueue<Run> heap = new PriorityQueue<Run>(Math.max(
+        1, runs.size()), new Comparator<Run>() {
+
+      @Override
+      public int compare(Run o1, Run o2) {
+        return ExternalSorter.compare(o1.key, o1.id, o2.key, o2.id);
+      }
+
+    });
+    private final List<Run> opened = new ArrayList<Run>();
+    private Run current = null;
+
+    MergeReader() throws IOException {
+      for (File file : runs) {
+        Run run = new Run(file);
+        opened.add(run);
+        if (run.advance()) {
+          heap.add(run);
+        }
+      }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (current != null && current.advance()) {
+        heap.add(current);
+      }
+      current = heap.poll();
+      return current != null;
+    }
+
+    @Override
+    public long key() {
+      return current.key;
+    }
+
+    @Override
+    public long id() {
+      return current.id;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Run run : opened) {
+        run.in.close();
+      }
+    }
+  }
+}
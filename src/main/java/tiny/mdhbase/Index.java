@@ -17,21 +17,38 @@ package tiny.mdhbase;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import tiny.mdhbase.SplitPlanner.Cell;
+import tiny.mdhbase.SplitPlanner.Histogram;
+
 import com.google.common.io.Closeables;
 
 /**
@@ -39,7 +56,9 @@ import com.google.common.io.Closeables;
  * 
  * Index maintains partitioned spaces. When the number of points in a sub-space
  * exceeds a split threshold, the index halves the sub-space and allocates two
- * new buckets for the partitioned sub-spaces.
+ * new buckets for the partitioned sub-spaces. When the number of points in two
+ * sibling sub-spaces falls under a merge threshold, the index merges their
+ * buckets back into one.
  * 
  * Schema:
  * <ul>
@@ -48,6 +67,25 @@ import com.google.common.io.Closeables;
  * <ul>
  * <li>column: pl, common prefix length of points in a bucket
  * <li>column: bs, size of a bucket/number of points in a bucket
+ * <li>column: h0, h1, number of points in each half of a bucket, namely in
+ * [abc0*****] and [abc1*****] of bucket [abc******]
+ * <li>column: q0, q1, q2, q3, number of points in each quarter of a bucket,
+ * namely in [abc00****], [abc01****], [abc10****] and [abc11****]
+ * <li>column: cd, counter depth. 2 if both the halves and the quarters are
+ * exact, 1 if only the halves are, 0 or missing if neither is. A bucket whose
+ * halves are exact splits without scanning the data table.
+ * <li>column: gen, generation of the index, which is incremented on every
+ * split and merge. Only the row of the root bucket holds this column.
+ * <li>column: dim, number of dimensions of the index. Only the row of the root
+ * bucket holds this column. 2 if missing.
+ * <li>column: fmt, version of the {@link PointFormat} of the data table. Only
+ * the row of the root bucket holds this column. 1 if missing.
+ * <li>column: pk, the timestamp of the bucket size when the bucket was last
+ * packed, see {@link #packBucket(byte[])}
+ * <li>column: pt, prefix tag, the prefix length as a long. Counter updates
+ * increment it by 0 to read it back together with the counters, see
+ * {@link #updateCounters(byte[], int, List, long)}. 0 or missing on rows of
+ * counters which are not buckets, and on rows written by older versions.
  * </ul>
  * </ul>
  * 
@@ -66,24 +104,223 @@ public class Index implements Closeable {
 
   public static final byte[] COLUMN_BUCKET_SIZE = "bs".getBytes();
 
+  public static final byte[] COLUMN_GENERATION = "gen".getBytes();
+
+  public static final byte[][] COLUMN_HALF_SIZES = new byte[][] {
+      "h0".getBytes(), "h1".getBytes() };
+
+  public static final byte[][] COLUMN_QUARTER_SIZES = new byte[][] {
+      "q0".getBytes(), "q1".getBytes(), "q2".getBytes(), "q3".getBytes() };
+
+  public static final byte[] COLUMN_COUNTER_DEPTH = "cd".getBytes();
+
+  public static final byte[] COLUMN_DIMENSIONS = "dim".getBytes();
+
+  public static final byte[] COLUMN_FORMAT = "fmt".getBytes();
+
+  public static final byte[] COLUMN_PACKED = "pk".getBytes();
+
+  public static final byte[] COLUMN_PREFIX_TAG = "pt".getBytes();
+
+  /*
+   * the maximum counter depth, namely the number of prefix bits below a bucket
+   * whose counts are maintained on insertion.
+   */
+  static final int MAX_COUNTER_DEPTH = 2;
+
+  // retries of counter updates which find no bucket holding their rows
+  private static final int MAX_RECOUNT_ATTEMPTS = 10;
+
+  private static final long RECOUNT_PAUSE = 10L;
+
+  /**
+   * milliseconds between checks of the index generation by the bucket
+   * directory
+   */
+  public static final String DIRECTORY_REFRESH_INTERVAL_KEY =
+      "tiny.mdhbase.directory.refresh.interval";
+
+  public static final long DEFAULT_DIRECTORY_REFRESH_INTERVAL = 1000L;
+
+  /**
+   * the number of background threads which split buckets. 0 splits buckets
+   * inline on the insert path.
+   */
+  public static final String SPLIT_THREADS_KEY = "tiny.mdhbase.split.threads";
+
+  public static final int DEFAULT_SPLIT_THREADS = 1;
+
+  /**
+   * milliseconds a split thread pauses after each split
+   */
+  public static final String SPLIT_PAUSE_KEY = "tiny.mdhbase.split.pause";
+
+  public static final long DEFAULT_SPLIT_PAUSE = 0L;
+
+  /**
+   * the version of the point format of new tables. Existing tables keep the
+   * version they were created with.
+   */
+  public static final String FORMAT_KEY = "tiny.mdhbase.format";
+
+  public static final int DEFAULT_FORMAT = PointFormat.CURRENT_VERSION;
+
+  /**
+   * the ratio of the merge threshold to the split threshold. Sibling buckets
+   * are merged when they hold fewer points than the merge threshold in total.
+   * 0 disables merges.
+   */
+  public static final String MERGE_RATIO_KEY = "tiny.mdhbase.merge.ratio";
+
+  public static final float DEFAULT_MERGE_RATIO = 0.25f;
+
+  /**
+   * the number of regions a new data table is uniformly pre-split into
+   */
+  public static final String PRESPLIT_REGIONS_KEY =
+      "tiny.mdhbase.presplit.regions";
+
+  public static final int DEFAULT_PRESPLIT_REGIONS = 1;
+
+  /**
+   * true to create a new 2D data table which packs cold buckets into chunks.
+   * Existing tables keep the layout they were created with.
+   */
+  public static final String PACKING_KEY = "tiny.mdhbase.packing";
+
+  public static final boolean DEFAULT_PACKING = false;
+
+  /**
+   * milliseconds between passes of a {@link BucketPacker} over the index
+   */
+  public static final String PACK_INTERVAL_KEY = "tiny.mdhbase.pack.interval";
+
+  public static final long DEFAULT_PACK_INTERVAL = 10 * 60 * 1000L;
+
+  /**
+   * milliseconds a bucket must be left unchanged before it is packed
+   */
+  public static final String PACK_COLD_AGE_KEY = "tiny.mdhbase.pack.cold.age";
+
+  public static final long DEFAULT_PACK_COLD_AGE = 60 * 60 * 1000L;
+
+  /**
+   * the maximum number of points in a chunk
+   */
+  public static final String PACK_CHUNK_SIZE_KEY =
+      "tiny.mdhbase.pack.chunk.size";
+
+  public static final int DEFAULT_PACK_CHUNK_SIZE = 1024;
+
+  /*
+   * key of the root bucket. Splits keep the key of the lower half, so the row
+   * always exists.
+   */
+  static final byte[] ROOT_KEY = Utils.bitwiseZip(0, 0);
+
+  /*
+   * prefix length of the root bucket of a 2D index. Coordinates are
+   * non-negative, so the most significant bits of x and y are always 0.
+   */
+  static final int ROOT_PREFIX_LENGTH = 2;
+
+  /*
+   * the first key past the key space of a 2D index
+   */
+  static final long END_KEY = ZOrder.lastKey(0L, ROOT_PREFIX_LENGTH) + 1;
+
+  private final Interleaver interleaver;
+
+  private final PointFormat pointFormat;
+
   private final int splitThreshold;
 
-  private final HTable dataTable;
+  private final long mergeThreshold;
 
-  private final HTable indexTable;
+  private final TableHandle dataTable;
+
+  private final TableHandle indexTable;
 
   private final HBaseAdmin admin;
 
+  private final BucketDirectory directory;
+
+  private final SplitService splitService;
+
+  private final boolean countEndpoint;
+
+  private final boolean packing;
+
+  private final int chunkSize;
+
+  private final Metrics metrics;
+
   public Index(Configuration config, String tableName, int splitThreshold)
       throws IOException {
+    this(config, tableName, splitThreshold, RegionSplits.uniform(config
+        .getInt(PRESPLIT_REGIONS_KEY, DEFAULT_PRESPLIT_REGIONS)));
+  }
+
+  /**
+   * 
+   * @param config
+   * @param tableName
+   * @param splitThreshold
+   * @param splitKeys
+   *          keys to pre-split a new data table. See {@link RegionSplits}.
+   * @throws IOException
+   */
+  public Index(Configuration config, String tableName, int splitThreshold,
+      byte[][] splitKeys) throws IOException {
+    this(config, tableName, splitThreshold, splitKeys, 2);
+  }
+
+  /**
+   * 
+   * @param config
+   * @param tableName
+   * @param splitThreshold
+   * @param splitKeys
+   *          keys to pre-split a new data table
+   * @param dimensions
+   *          the number of dimensions of points
+   * @throws IOException
+   *           if the index exists with another number of dimensions
+   */
+  public Index(Configuration config, String tableName, int splitThreshold,
+      byte[][] splitKeys, int dimensions) throws IOException {
+    this.interleaver = new Interleaver(dimensions);
+    this.metrics = new Metrics(tableName, config.getBoolean(
+        Metrics.METRICS_ENABLED_KEY, Metrics.DEFAULT_METRICS_ENABLED),
+        config.getBoolean(Metrics.METRICS_JMX_KEY,
+            Metrics.DEFAULT_METRICS_JMX));
     this.admin = new HBaseAdmin(config);
     if (!admin.tableExists(tableName)) {
       HTableDescriptor tdesc = new HTableDescriptor(tableName);
       HColumnDescriptor cdesc = new HColumnDescriptor(Bucket.FAMILY);
       tdesc.addFamily(cdesc);
-      admin.createTable(tdesc);
+      if (dimensions == 2 && config.getBoolean(PACKING_KEY, DEFAULT_PACKING)) {
+        tdesc.addFamily(new HColumnDescriptor(PackedBlock.FAMILY));
+      }
+      tdesc.addCoprocessor(RangeCountEndpoint.class.getName());
+      tdesc.setValue(HTableDescriptor.SPLIT_POLICY,
+          BucketSplitPolicy.class.getName());
+      if (splitKeys.length > 0) {
+        admin.createTable(tdesc, splitKeys);
+      } else {
+        admin.createTable(tdesc);
+      }
     }
-    dataTable = new HTable(config, tableName);
+    dataTable = new TableHandle(config, tableName);
+    HTableDescriptor dataDescriptor = admin.getTableDescriptor(Bytes
+        .toBytes(tableName));
+    // tables created by older versions have no endpoint
+    this.countEndpoint = dataDescriptor.hasCoprocessor(RangeCountEndpoint.class
+        .getName());
+    this.packing = dimensions == 2
+        && dataDescriptor.hasFamily(PackedBlock.FAMILY);
+    this.chunkSize = config.getInt(PACK_CHUNK_SIZE_KEY,
+        DEFAULT_PACK_CHUNK_SIZE);
 
     String indexName = tableName + "_index";
     if (!admin.tableExists(indexName)) {
@@ -92,16 +329,45 @@ public class Index implements Closeable {
       tdesc.addFamily(cdesc);
       admin.createTable(tdesc);
 
-      indexTable = new HTable(config, indexName);
-      Put put = new Put(Utils.bitwiseZip(0, 0));
-      put.add(FAMILY_INFO, COLUMN_PREFIX_LENGTH, Bytes.toBytes(2));
-      put.add(FAMILY_INFO, COLUMN_BUCKET_SIZE, Bytes.toBytes(0L));
-      indexTable.put(put);
+      indexTable = new TableHandle(config, indexName);
+      Put put = toIndexEntry(ROOT_KEY, interleaver.getRootPrefixLength(),
+          new long[1 << MAX_COUNTER_DEPTH], MAX_COUNTER_DEPTH);
+      put.add(FAMILY_INFO, COLUMN_GENERATION, Bytes.toBytes(0L));
+      put.add(FAMILY_INFO, COLUMN_DIMENSIONS, Bytes.toBytes(dimensions));
+      this.pointFormat = PointFormat.of(config.getInt(FORMAT_KEY,
+          DEFAULT_FORMAT));
+      put.add(FAMILY_INFO, COLUMN_FORMAT, Bytes.toBytes(pointFormat
+          .getVersion()));
+      indexTable.get().put(put);
     } else {
-      indexTable = new HTable(config, indexName);
+      indexTable = new TableHandle(config, indexName);
+      Get get = new Get(ROOT_KEY);
+      get.addColumn(FAMILY_INFO, COLUMN_DIMENSIONS);
+      get.addColumn(FAMILY_INFO, COLUMN_FORMAT);
+      Result root = indexTable.get().get(get);
+      byte[] format = root.getValue(FAMILY_INFO, COLUMN_FORMAT);
+      this.pointFormat = PointFormat.of(format == null ? PointFormat.VERSION_1
+          : Bytes.toInt(format));
+      byte[] value = root.getValue(FAMILY_INFO, COLUMN_DIMENSIONS);
+      int existing = value == null ? 2 : Bytes.toInt(value);
+      if (existing != dimensions) {
+        Closeables.closeQuietly(indexTable);
+        Closeables.closeQuietly(dataTable);
+        metrics.close();
+        throw new IOException(String.format(
+            "index %s has %d dimensions, not %d", indexName, existing,
+            dimensions));
+      }
     }
 
     this.splitThreshold = splitThreshold;
+    this.mergeThreshold = (long) (splitThreshold * config.getFloat(
+        MERGE_RATIO_KEY, DEFAULT_MERGE_RATIO));
+    this.directory = new BucketDirectory(indexTable, config.getLong(
+        DIRECTORY_REFRESH_INTERVAL_KEY, DEFAULT_DIRECTORY_REFRESH_INTERVAL));
+    this.splitService = new SplitService(this, config.getInt(
+        SPLIT_THREADS_KEY, DEFAULT_SPLIT_THREADS), config.getLong(
+        SPLIT_PAUSE_KEY, DEFAULT_SPLIT_PAUSE));
   }
 
   /**
@@ -113,23 +379,51 @@ public class Index implements Closeable {
    * @throws IOException
    */
   public Bucket fetchBucket(byte[] row) throws IOException {
-    Result bucketEntry = indexTable.getRowOrBefore(row, FAMILY_INFO);
-    byte[] bucketKey = bucketEntry.getRow();
-    int prefixLength = Bytes.toInt(bucketEntry.getValue(FAMILY_INFO,
-        COLUMN_PREFIX_LENGTH));
-    Range[] ranges = toRanges(bucketKey, prefixLength);
-    return createBucket(ranges);
+    long start = metrics.start();
+    Entry<byte[], Integer> bucketEntry = directory.lookup(row);
+    int prefixLength = bucketEntry.getValue();
+    Range[] ranges = toRanges(bucketEntry.getKey(), prefixLength);
+    metrics.stop(Metrics.INDEX_LOOKUP, start);
+    return createBucket(ranges, prefixLength);
   }
 
-  private Range[] toRanges(byte[] bucketKey, int prefixLength) {
-    byte[] suffix_ones = Utils.not(Utils.makeMask(prefixLength));
-    // substitute don't cares to 0s. ex. [010*****] -> [01000000]
-    int[] mins = Utils.bitwiseUnzip(bucketKey);
+  /**
+   * looks up the bucket which holds the queried row, without building a 2D
+   * bucket.
+   * 
+   * @param row
+   *          a queried row key
+   * @return a pair of the bucket key and its prefix length
+   * @throws IOException
+   */
+  Entry<byte[], Integer> lookupBucket(byte[] row) throws IOException {
+    long start = metrics.start();
+    Entry<byte[], Integer> bucketEntry = directory.lookup(row);
+    metrics.stop(Metrics.INDEX_LOOKUP, start);
+    return bucketEntry;
+  }
+
+  /**
+   * 
+   * @return the metrics of this index and its clients
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /*
+   * converts a sub-space [bucketKey, prefixLength] to ranges on x and y.
+   */
+  static Range[] toRanges(byte[] bucketKey, int prefixLength) {
+    return toRanges(Bytes.toLong(bucketKey), prefixLength);
+  }
+
+  static Range[] toRanges(long bucketKey, int prefixLength) {
     // substitute don't cares to 1s. ex. [010*****] -> [01011111]
-    int[] maxs = Utils.bitwiseUnzip(Utils.or(bucketKey, suffix_ones));
+    long last = ZOrder.lastKey(bucketKey, prefixLength);
     Range[] ranges = new Range[2];
-    ranges[0] = new Range(mins[0], maxs[0]);
-    ranges[1] = new Range(mins[1], maxs[1]);
+    ranges[0] = new Range(ZOrder.unzipX(bucketKey), ZOrder.unzipX(last));
+    ranges[1] = new Range(ZOrder.unzipY(bucketKey), ZOrder.unzipY(last));
     return ranges;
   }
 
@@ -143,90 +437,1238 @@ public class Index implements Closeable {
    */
   public Iterable<Bucket> findBucketsInRange(Range rx, Range ry)
       throws IOException {
-    byte[] probeKey = Utils.bitwiseZip(rx.min, ry.min);
-    Result bucketEntry = indexTable.getRowOrBefore(probeKey, FAMILY_INFO);
-    byte[] startKey = bucketEntry.getRow();
-    byte[] stopKey = Bytes.incrementBytes(Utils.bitwiseZip(rx.max, ry.max), 1L);
-    Scan scan = new Scan(startKey, stopKey);
+    BucketScanner buckets = scanBuckets(rx, ry);
+    List<Bucket> hitBuckets = new LinkedList<Bucket>();
+    try {
+      for (Bucket bucket = buckets.next(); bucket != null; bucket = buckets
+          .next()) {
+        hitBuckets.add(bucket);
+      }
+    } finally {
+      buckets.close();
+    }
+    return hitBuckets;
+  }
+
+  /**
+   * opens a scanner over buckets which intersect with the query region. Index
+   * entries are fetched as the buckets are consumed, so the index scan proceeds
+   * along with the scans of the buckets.
+   * 
+   * The Z-order interval between the corners of the query region may hold many
+   * buckets out of the region. The buckets in the region are found in the
+   * bucket directory by jumping over the others with BIGMIN, and only the key
+   * intervals of runs of adjacent buckets in the region are scanned.
+   * 
+   * @param rx
+   * @param ry
+   * @return a scanner which must be closed
+   * @throws IOException
+   */
+  BucketScanner scanBuckets(Range rx, Range ry) throws IOException {
+    long start = metrics.start();
+    List<long[]> intervals = bucketIntervals(ZOrder.zip(rx.min, ry.min),
+        ZOrder.zip(rx.max, ry.max));
+    List<Scan> scans = new ArrayList<Scan>(intervals.size());
+    for (long[] interval : intervals) {
+      scans.add(newIndexScan(interval[0], interval[1]));
+    }
+    metrics.stop(Metrics.INDEX_LOOKUP, start);
+    return new BucketScanner(scans, rx, ry);
+  }
+
+  /**
+   * finds key intervals of runs of adjacent buckets which intersect with a
+   * query box, given by the Z-order values of its corners.
+   * 
+   * @param zmin
+   * @param zmax
+   * @return pairs of the first and the last keys of the intervals
+   * @throws IOException
+   */
+  List<long[]> bucketIntervals(long zmin, long zmax) throws IOException {
+    List<long[]> intervals = new ArrayList<long[]>();
+    long intervalStart = -1L;
+    long intervalEnd = -1L;
+    for (long z = zmin; z != -1L;) {
+      Entry<byte[], Integer> bucketEntry = directory.lookup(Bytes.toBytes(z));
+      long bucketKey = Bytes.toLong(bucketEntry.getKey());
+      // the last key of the bucket. ex. [010*****] -> [01011111]
+      long bucketEnd = ZOrder.lastKey(bucketKey, bucketEntry.getValue());
+      if (intervalStart == -1L) {
+        intervalStart = bucketKey;
+      } else if (bucketKey != intervalEnd + 1) {
+        intervals.add(new long[] { intervalStart, intervalEnd });
+        intervalStart = bucketKey;
+      }
+      intervalEnd = bucketEnd;
+      z = bucketEnd < zmax ? interleaver.bigmin(bucketEnd + 1, zmin, zmax)
+          : -1L;
+    }
+    intervals.add(new long[] { intervalStart, intervalEnd });
+    return intervals;
+  }
+
+  /**
+   * 
+   * @return the format of points in the data table
+   */
+  PointFormat getPointFormat() {
+    return pointFormat;
+  }
+
+  /**
+   * 
+   * @return true if the data table packs buckets into chunks
+   */
+  boolean isPacking() {
+    return packing;
+  }
+
+  /**
+   * 
+   * @return the interleaver of the dimensions of this index
+   */
+  Interleaver getInterleaver() {
+    return interleaver;
+  }
+
+  /*
+   * the whole key interval is scanned, so buckets split after the directory
+   * was loaded are found as well.
+   */
+  private Scan newIndexScan(long start, long end) {
+    Scan scan = new Scan(Bytes.toBytes(start), Bytes.toBytes(end + 1));
     scan.addFamily(FAMILY_INFO);
     scan.setCaching(1000);
-    ResultScanner results = indexTable.getScanner(scan);
-    List<Bucket> hitBuckets = new LinkedList<Bucket>();
-    for (Result result : results) {
-      byte[] row = result.getRow();
+    return scan;
+  }
+
+  /**
+   * BucketScanner streams buckets which intersect with a query region from
+   * index scans over key intervals.
+   * 
+   * An interval starts at a bucket key of the directory. If the directory is
+   * stale and the bucket was merged into a bucket before the interval, the
+   * index scan misses the merged bucket, so it is looked up separately.
+   */
+  class BucketScanner implements Closeable {
+    private final Iterator<Scan> scans;
+    private final Range rx;
+    private final Range ry;
+    private ResultScanner results = null;
+    // the start of the current interval until its first row is checked
+    private byte[] intervalStart = null;
+    // a row read ahead while looking up a merged bucket
+    private Result pending = null;
+    private byte[] lastKey = null;
+    private int returned = 0;
+    private boolean closed = false;
+
+    private BucketScanner(List<Scan> scans, Range rx, Range ry) {
+      this.scans = scans.iterator();
+      this.rx = rx;
+      this.ry = ry;
+    }
+
+    /**
+     * 
+     * @return the next bucket, or null if the scanner is exhausted
+     * @throws IOException
+     */
+    Bucket next() throws IOException {
+      while (true) {
+        if (pending != null) {
+          Result result = pending;
+          pending = null;
+          Bucket bucket = toBucket(result);
+          if (bucket != null) {
+            return bucket;
+          }
+        }
+        if (results == null) {
+          if (!scans.hasNext()) {
+            return null;
+          }
+          Scan scan = scans.next();
+          results = indexTable.get().getScanner(scan);
+          intervalStart = scan.getStartRow();
+        }
+        for (Result result = results.next(); result != null; result = results
+            .next()) {
+          if (intervalStart != null
+              && !Bytes.equals(result.getRow(), intervalStart)) {
+            pending = result;
+            Bucket merged = mergedBucket();
+            if (merged != null) {
+              return merged;
+            }
+            break;
+          }
+          intervalStart = null;
+          Bucket bucket = toBucket(result);
+          if (bucket != null) {
+            return bucket;
+          }
+        }
+        if (pending == null) {
+          Bucket merged = mergedBucket();
+          results.close();
+          results = null;
+          if (merged != null) {
+            return merged;
+          }
+        }
+      }
+    }
+
+    /*
+     * looks up the bucket which holds the start of the current interval if no
+     * bucket starts there.
+     */
+    private Bucket mergedBucket() throws IOException {
+      if (intervalStart == null) {
+        return null;
+      }
+      byte[] start = intervalStart;
+      intervalStart = null;
+      directory.invalidate();
+      Result result = indexTable.get().getRowOrBefore(start, FAMILY_INFO);
+      if (result == null
+          || !result.containsColumn(FAMILY_INFO, COLUMN_PREFIX_LENGTH)) {
+        return null;
+      }
       int pl = Bytes.toInt(result.getValue(FAMILY_INFO, COLUMN_PREFIX_LENGTH));
+      if (ZOrder.lastKey(Bytes.toLong(result.getRow()), pl) < Bytes
+          .toLong(start)) {
+        return null;
+      }
+      return toBucket(result);
+    }
+
+    private Bucket toBucket(Result result) {
+      byte[] row = result.getRow();
+      byte[] plValue = result.getValue(FAMILY_INFO, COLUMN_PREFIX_LENGTH);
+      if (plValue == null || Bytes.equals(row, lastKey)) {
+        return null;
+      }
+      int pl = Bytes.toInt(plValue);
       Range[] rs = toRanges(row, pl);
-      if (rx.intersect(rs[0]) && ry.intersect(rs[1])) {
-        hitBuckets.add(createBucket(rs));
+      if (!rx.intersect(rs[0]) || !ry.intersect(rs[1])) {
+        return null;
+      }
+      byte[] size = result.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE);
+      lastKey = row;
+      returned++;
+      return new Bucket(rs[0], rs[1], pl, size == null ? -1L : Bytes
+          .toLong(size), Index.this);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+      if (results != null) {
+        results.close();
+        results = null;
+      }
+      if (!closed) {
+        closed = true;
+        metrics.update(Metrics.BUCKETS_PER_QUERY, returned);
       }
     }
-    return hitBuckets;
   }
 
-  private Bucket createBucket(Range[] rs) {
-    return new Bucket(dataTable, rs[0], rs[1], this);
+  private Bucket createBucket(Range[] rs, int prefixLength) {
+    return new Bucket(rs[0], rs[1], prefixLength, this);
   }
 
   /**
+   * counts points within the query region in the given buckets. The points are
+   * counted by {@link RangeCountEndpoint} on region servers, or by scanning the
+   * buckets if the data table has no endpoint.
+   * 
+   * @param buckets
+   *          buckets in ascending order of their keys
+   * @param rx
+   * @param ry
+   * @return the number of points within the query region
+   * @throws IOException
+   */
+  long countInBuckets(List<Bucket> buckets, final Range rx, final Range ry)
+      throws IOException {
+    if (buckets.isEmpty()) {
+      return 0L;
+    }
+    if (!countEndpoint) {
+      long count = 0L;
+      PointBlock block = new PointBlock();
+      for (Bucket bucket : buckets) {
+        BlockScanner points = bucket.blockScanner(rx, ry);
+        try {
+          while (points.next(block)) {
+            count += block.size();
+          }
+        } finally {
+          points.close();
+        }
+      }
+      return count;
+    }
+
+    final byte[][] startRows = new byte[buckets.size()][];
+    final byte[][] stopRows = new byte[buckets.size()][];
+    for (int i = 0; i < startRows.length; i++) {
+      byte[][] rows = buckets.get(i).rowRange(rx, ry);
+      startRows[i] = rows[0];
+      stopRows[i] = rows[1];
+    }
+    Map<byte[], Long> counts;
+    try {
+      counts = dataTable.get().coprocessorExec(RangeCountProtocol.class,
+          startRows[0], stopRows[stopRows.length - 1],
+          new Batch.Call<RangeCountProtocol, Long>() {
+
+            @Override
+            public Long call(RangeCountProtocol instance) throws IOException {
+              return instance.count(startRows, stopRows, rx.min, rx.max,
+                  ry.min, ry.max);
+            }
+
+          });
+    } catch (IOException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IOException(t);
+    }
+    long count = 0L;
+    for (Long regionCount : counts.values()) {
+      count += regionCount;
+    }
+    return count;
+  }
+
+  /**
+   * 
+   * @return the data table instance of the calling thread
+   * @throws IOException
+   */
+  HTable dataTable() throws IOException {
+    return dataTable.get();
+  }
+
+  /**
+   * deletes a cell of a point from the data table.
    * 
    * @param row
+   * @param qualifier
+   * @param value
+   *          the value of the cell, which must match
+   * @return true if the cell was stored and is deleted by this call
    * @throws IOException
    */
-  void notifyInsertion(byte[] row) throws IOException {
-    Result bucketEntry = indexTable.getRowOrBefore(row, FAMILY_INFO);
-    byte[] bucketKey = bucketEntry.getRow();
-    long size = indexTable.incrementColumnValue(bucketKey, FAMILY_INFO,
-        COLUMN_BUCKET_SIZE, 1L);
-    maySplit(bucketKey, size);
+  boolean deletePoint(byte[] row, byte[] qualifier, byte[] value)
+      throws IOException {
+    Delete delete = new Delete(row);
+    delete.deleteColumns(Bucket.FAMILY, qualifier);
+    return dataTable().checkAndDelete(row, Bucket.FAMILY, qualifier, value,
+        delete);
   }
 
-  private void maySplit(byte[] bucketKey, long size) throws IOException {
-    if (size > splitThreshold) {
-      splitBucket(bucketKey);
+  /**
+   * inserts a batch of points. Points of all buckets are written with a single
+   * multi-put, then the counters of each bucket are incremented once by the
+   * number of its points.
+   * 
+   * @param batch
+   *          puts built by {@link Bucket#toPut(byte[], Point)}, grouped by
+   *          bucket
+   * @throws IOException
+   */
+  void insert(Map<Bucket, List<Put>> batch) throws IOException {
+    long start = metrics.start();
+    List<Put> puts = new ArrayList<Put>();
+    for (List<Put> bucketPuts : batch.values()) {
+      puts.addAll(bucketPuts);
+    }
+    dataTable.get().put(puts);
+    for (Entry<Bucket, List<Put>> entry : batch.entrySet()) {
+      Bucket bucket = entry.getKey();
+      List<byte[]> rows = new ArrayList<byte[]>(entry.getValue().size());
+      for (Put put : entry.getValue()) {
+        rows.add(put.getRow());
+      }
+      updateCounters(bucket.getKey(), bucket.getPrefixLength(), rows, 1L);
+    }
+    metrics.stop(Metrics.INSERT_BATCH, start);
+  }
+
+  /**
+   * adds to the size and the half and quarter counters of a bucket in a single
+   * call. The bucket is split if it grows over the split threshold, and merged
+   * with its sibling if it shrinks under the merge threshold.
+   * 
+   * A bucket looked up in a stale directory may have been split or merged by
+   * another client. The increment reads the prefix tag of the row back, which
+   * differs from the prefix length of the caller if the bucket changed, and is
+   * 0 if the bucket was merged away. The update is then undone and the rows
+   * are counted in the buckets which hold them now. Each client moves only its
+   * own counts, and a row which is no bucket is deleted once its counters are
+   * back to 0, so concurrent stale updates never remove the counts of each
+   * other. Rows outside the bucket, which a directory loaded in the middle of a
+   * split returns, are counted again without touching the bucket.
+   * 
+   * @param bucketKey
+   *          the key of the bucket points were inserted into or deleted from
+   * @param prefixLength
+   *          the prefix length of the bucket
+   * @param rows
+   *          row keys of the inserted or deleted points
+   * @param delta
+   *          1 for insertions, -1 for deletions
+   * @throws IOException
+   */
+  void updateCounters(byte[] bucketKey, int prefixLength, List<byte[]> rows,
+      long delta) throws IOException {
+    updateCounters(bucketKey, prefixLength, rows, delta, 0);
+  }
+
+  private void updateCounters(byte[] bucketKey, int prefixLength,
+      List<byte[]> rows, long delta, int attempt) throws IOException {
+    if (!covers(Bytes.toLong(bucketKey), prefixLength, rows)) {
+      recount(rows, delta, attempt + 1);
+      return;
+    }
+    long[] quarters = countQuarters(rows, prefixLength, delta);
+    Increment increment = toIncrement(bucketKey, quarters);
+    increment.addColumn(FAMILY_INFO, COLUMN_PREFIX_TAG, 0L);
+    Result result = indexTable.get().increment(increment);
+    long size = Bytes.toLong(result.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE));
+    long tag = Bytes.toLong(result.getValue(FAMILY_INFO, COLUMN_PREFIX_TAG));
+    if (tag == 0L) {
+      tag = tagBucket(bucketKey);
+    }
+    if (tag != prefixLength) {
+      undoCounters(bucketKey, quarters, tag < 0);
+      recount(rows, delta, attempt + 1);
+    } else if (size > splitThreshold) {
+      splitService.requestSplit(bucketKey);
+    } else if (delta < 0 && size < mergeThreshold) {
+      splitService.requestMerge(bucketKey);
+    }
+  }
+
+  /*
+   * counts rows by the quarters of a bucket.
+   */
+  static long[] countQuarters(List<byte[]> rows, int prefixLength, long delta) {
+    long[] quarters = new long[1 << MAX_COUNTER_DEPTH];
+    for (byte[] row : rows) {
+      quarters[Utils.getBits(row, prefixLength, MAX_COUNTER_DEPTH)] += delta;
+    }
+    return quarters;
+  }
+
+  private static Increment toIncrement(byte[] bucketKey, long[] quarters) {
+    Increment increment = new Increment(bucketKey);
+    for (int i = 0; i < quarters.length; i++) {
+      if (quarters[i] != 0) {
+        increment.addColumn(FAMILY_INFO, COLUMN_QUARTER_SIZES[i], quarters[i]);
+      }
+    }
+    for (int i = 0; i < 2; i++) {
+      long half = quarters[2 * i] + quarters[2 * i + 1];
+      if (half != 0) {
+        increment.addColumn(FAMILY_INFO, COLUMN_HALF_SIZES[i], half);
+      }
+    }
+    increment.addColumn(FAMILY_INFO, COLUMN_BUCKET_SIZE, sum(quarters));
+    return increment;
+  }
+
+  /*
+   * returns true if all rows lie in the bucket.
+   */
+  static boolean covers(long bucketKey, int prefixLength, List<byte[]> rows) {
+    long last = ZOrder.lastKey(bucketKey, prefixLength);
+    for (byte[] row : rows) {
+      long key = Bytes.toLong(row);
+      if (key < bucketKey || key > last) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * returns the prefix length of the row, or -1 if the row is no bucket. The
+   * prefix tag of a bucket written by an older version is recorded.
+   */
+  private int tagBucket(byte[] bucketKey) throws IOException {
+    int prefixLength = prefixLengthOf(readIndexEntry(bucketKey));
+    if (prefixLength < 0) {
+      return -1;
+    }
+    Put put = new Put(bucketKey);
+    put.add(FAMILY_INFO, COLUMN_PREFIX_TAG, Bytes.toBytes((long) prefixLength));
+    indexTable.get().checkAndPut(bucketKey, FAMILY_INFO, COLUMN_PREFIX_TAG,
+        Bytes.toBytes(0L), put);
+    return prefixLength;
+  }
+
+  /*
+   * takes back an update which landed on the wrong row. A row which is no
+   * bucket is deleted if no other update is left on it. Only versions up to the
+   * undo are deleted, so a bucket created at the key later is kept.
+   */
+  private void undoCounters(byte[] bucketKey, long[] quarters,
+      boolean orphan) throws IOException {
+    long[] negated = new long[quarters.length];
+    for (int i = 0; i < quarters.length; i++) {
+      negated[i] = -quarters[i];
+    }
+    HTable indexTable = this.indexTable.get();
+    Result result = indexTable.increment(toIncrement(bucketKey, negated));
+    KeyValue size = result.getColumnLatest(FAMILY_INFO, COLUMN_BUCKET_SIZE);
+    if (orphan && Bytes.toLong(size.getValue()) == 0L) {
+      Delete delete = new Delete(bucketKey);
+      delete.deleteFamily(FAMILY_INFO, size.getTimestamp());
+      indexTable.checkAndDelete(bucketKey, FAMILY_INFO, COLUMN_BUCKET_SIZE,
+          Bytes.toBytes(0L), delete);
     }
   }
 
+  /*
+   * counts rows again in the buckets which hold them now. A split in progress
+   * may have shrunk its bucket without writing the new buckets yet, so the
+   * lookups are retried for a while.
+   */
+  private void recount(List<byte[]> rows, long delta, int attempt)
+      throws IOException {
+    if (attempt > MAX_RECOUNT_ATTEMPTS) {
+      throw new IOException("no bucket holds row "
+          + Bytes.toStringBinary(rows.get(0)));
+    }
+    if (attempt > 1) {
+      try {
+        Thread.sleep(RECOUNT_PAUSE * attempt);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("counter update was interrupted");
+      }
+    }
+    directory.invalidate();
+    Map<byte[], List<byte[]>> groups = new TreeMap<byte[], List<byte[]>>(
+        Bytes.BYTES_COMPARATOR);
+    Map<byte[], Integer> prefixLengths = new TreeMap<byte[], Integer>(
+        Bytes.BYTES_COMPARATOR);
+    for (byte[] row : rows) {
+      Entry<byte[], Integer> bucketEntry = directory.lookup(row);
+      List<byte[]> group = groups.get(bucketEntry.getKey());
+      if (group == null) {
+        group = new ArrayList<byte[]>();
+        groups.put(bucketEntry.getKey(), group);
+        prefixLengths.put(bucketEntry.getKey(), bucketEntry.getValue());
+      }
+      group.add(row);
+    }
+    for (Entry<byte[], List<byte[]>> group : groups.entrySet()) {
+      updateCounters(group.getKey(), prefixLengths.get(group.getKey()), group
+          .getValue(), delta, attempt);
+    }
+  }
+
+  /**
+   * 
+   * @return the number of buckets waiting to be split
+   */
+  public int getSplitQueueDepth() {
+    return splitService.getQueueDepth();
+  }
+
   /*
    * bucket [abc*****] is partitioned into bucket [abc0****] and bucket
-   * [abc1****].
+   * [abc1****], and so on until every new bucket is under the split threshold.
+   * The size is read again since a queued request may be stale.
+   * 
+   * The bucket is partitioned by its half and quarter counters first. Only the
+   * parts which are still over the threshold are scanned, once each, and
+   * partitioned by the histogram of their row keys. The entry of the new bucket
+   * which keeps the key is written only if the size did not change since it
+   * was read, so no point counted meanwhile is lost; otherwise the bucket is
+   * planned again. The other new buckets are then written in a single batch.
+   * Returns true if the bucket is split.
    */
-  private void splitBucket(byte[] splitKey) throws IOException {
-    Result bucketEntry = indexTable.getRowOrBefore(splitKey, FAMILY_INFO);
-    byte[] bucketKey = bucketEntry.getRow();
+  boolean splitBucket(byte[] splitKey) throws IOException {
+    HTable indexTable = this.indexTable.get();
+    while (true) {
+      Result bucketEntry = indexTable.getRowOrBefore(splitKey, FAMILY_INFO);
+      if (bucketEntry == null
+          || !bucketEntry.containsColumn(FAMILY_INFO, COLUMN_PREFIX_LENGTH)) {
+        return false;
+      }
+      byte[] bucketKey = bucketEntry.getRow();
+      int prefixLength = Bytes.toInt(bucketEntry.getValue(FAMILY_INFO,
+          COLUMN_PREFIX_LENGTH));
+      byte[] sizeValue = bucketEntry.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE);
+      long bucketSize = Bytes.toLong(sizeValue);
+      if (bucketSize <= splitThreshold) {
+        return false;
+      }
+      if (prefixLength + 1 > Long.SIZE) {
+        return false; // exceeds the maximum prefix length.
+      }
+      if (overlapsMerge(bucketKey, prefixLength)) {
+        return false; // the merge requests a split again if needed
+      }
+
+      long start = metrics.start();
+      // chunks stay in the row of the bucket key, which upper buckets
+      // never scan
+      unpackBucket(bucketKey);
+      SplitPlanner planner = new SplitPlanner(splitThreshold);
+      int depth = counterDepth(bucketEntry);
+      long[] counts = depth > 0 ? readCounters(bucketEntry, depth)
+          : new long[] { bucketSize };
+      List<Cell> leaves = new ArrayList<Cell>();
+      List<Cell> overfull = new ArrayList<Cell>();
+      planner.planFromCounters(new Cell(Bytes.toLong(bucketKey), prefixLength,
+          counts, depth), leaves, overfull);
+      for (Cell cell : overfull) {
+        planner.planFromHistogram(cell.key, cell.prefixLength,
+            scanHistogram(cell), MAX_COUNTER_DEPTH, leaves);
+      }
+
+      Put first = null;
+      List<Put> puts = new ArrayList<Put>(leaves.size());
+      Map<byte[], Integer> newBuckets = new TreeMap<byte[], Integer>(
+          Bytes.BYTES_COMPARATOR);
+      for (Cell leaf : leaves) {
+        byte[] key = Bytes.toBytes(leaf.key);
+        Put put = toIndexEntry(key, leaf.prefixLength, leaf.counts, leaf.depth);
+        if (Bytes.equals(key, bucketKey)) {
+          first = put;
+        } else {
+          puts.add(put);
+        }
+        newBuckets.put(key, leaf.prefixLength);
+      }
+      if (!indexTable.checkAndPut(bucketKey, FAMILY_INFO, COLUMN_BUCKET_SIZE,
+          sizeValue, first)) {
+        continue; // points were counted meanwhile
+      }
+      indexTable.put(puts);
+      long generation = indexTable.incrementColumnValue(ROOT_KEY, FAMILY_INFO,
+          COLUMN_GENERATION, 1L);
+      directory.splitted(newBuckets, generation);
+      // a pack which raced with the split may have packed the whole bucket
+      unpackBucket(bucketKey);
+      metrics.stop(Metrics.SPLIT, start);
+      metrics.update(Metrics.SPLIT_BUCKET_SIZE, bucketSize);
+      metrics.update(Metrics.SPLIT_NEW_BUCKETS, leaves.size());
+      return true;
+    }
+  }
+
+  /*
+   * bucket [abc0*****] and bucket [abc1*****] are merged into bucket
+   * [abc******] if they hold fewer points than the merge threshold in total,
+   * and so on while the merged bucket and its sibling are underfull. Nothing is
+   * merged if either half is split further.
+   * 
+   * The entry of the lower half is rewritten as the merged bucket first, only
+   * if its size did not change since it was read. Otherwise both halves are
+   * read and validated again, and the merge is abandoned if they no longer
+   * qualify. Until the entry of the upper half is deleted, lookups still find
+   * the upper half, so the merged bucket counts only the lower half meanwhile.
+   * The upper entry is deleted only if its size did not change since it was
+   * read; points counted by it meanwhile are added to the merged bucket before
+   * the next attempt. If the upper half was split meanwhile, the lower half is
+   * restored instead. The halves and quarters of the merged bucket are taken
+   * from the sizes and halves of the merged ones.
+   */
+  void mergeBucket(byte[] mergeKey) throws IOException {
+    if (mergeThreshold <= 0) {
+      return;
+    }
+    HTable indexTable = this.indexTable.get();
+    Result bucketEntry = indexTable.getRowOrBefore(mergeKey, FAMILY_INFO);
+    if (bucketEntry == null
+        || !bucketEntry.containsColumn(FAMILY_INFO, COLUMN_PREFIX_LENGTH)) {
+      return;
+    }
     int prefixLength = Bytes.toInt(bucketEntry.getValue(FAMILY_INFO,
         COLUMN_PREFIX_LENGTH));
-    long bucketSize = Bytes.toLong(bucketEntry.getValue(FAMILY_INFO,
+    if (prefixLength <= interleaver.getRootPrefixLength()) {
+      return;
+    }
+    long key = Bytes.toLong(bucketEntry.getRow());
+    long bit = 1L << (64 - prefixLength);
+    byte[] lowerKey = Bytes.toBytes(key & ~bit);
+    byte[] upperKey = Bytes.toBytes(key | bit);
+    Result lower = readIndexEntry(lowerKey);
+    Result upper = readIndexEntry(upperKey);
+    if (!isMergeable(lower, upper, prefixLength)) {
+      return;
+    }
+
+    long start = metrics.start();
+    // scans of the merged bucket may seek over the row of the upper key
+    unpackBucket(upperKey);
+    int depth = Math.min(1, Math.min(counterDepth(lower), counterDepth(upper)));
+    while (!indexTable.checkAndPut(lowerKey, FAMILY_INFO, COLUMN_BUCKET_SIZE,
+        lower.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE), toMergedEntry(
+            lowerKey, prefixLength - 1, mergedQuarters(mergeCountsOf(lower,
+                depth), mergeCountsOf(upper, depth)), depth + 1))) {
+      lower = readIndexEntry(lowerKey);
+      upper = readIndexEntry(upperKey);
+      if (!isMergeable(lower, upper, prefixLength)) {
+        return; // nothing is written yet
+      }
+      depth = Math.min(1, Math.min(counterDepth(lower), counterDepth(upper)));
+    }
+    while (!indexTable.checkAndDelete(upperKey, FAMILY_INFO,
+        COLUMN_BUCKET_SIZE, upper.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE),
+        new Delete(upperKey))) {
+      Result current = readIndexEntry(upperKey);
+      int upperPrefixLength = prefixLengthOf(current);
+      if (upperPrefixLength < 0) {
+        return; // merged by another client
+      }
+      if (upperPrefixLength != prefixLength) {
+        restoreLowerHalf(lowerKey, prefixLength);
+        return;
+      }
+      long[] counts = mergeCountsOf(upper, depth);
+      indexTable.increment(toIncrement(lowerKey, mergedQuarters(
+          new long[counts.length], difference(mergeCountsOf(current, depth),
+              counts))));
+      upper = current;
+    }
+    long generation = indexTable.incrementColumnValue(ROOT_KEY, FAMILY_INFO,
+        COLUMN_GENERATION, 1L);
+    directory.merged(lowerKey, prefixLength - 1, upperKey, generation);
+    unpackBucket(upperKey);
+    metrics.stop(Metrics.MERGE, start);
+    splitService.requestMerge(lowerKey);
+  }
+
+  /*
+   * true if another index entry overlaps the bucket, which happens only while
+   * a merge is in progress: the lower half already covers the upper half, but
+   * the entry of the upper half is not deleted yet.
+   */
+  private boolean overlapsMerge(byte[] bucketKey, int prefixLength)
+      throws IOException {
+    HTable indexTable = this.indexTable.get();
+    long key = Bytes.toLong(bucketKey);
+    Result inner = indexTable.getRowOrBefore(Bytes.toBytes(ZOrder.lastKey(key,
+        prefixLength)), FAMILY_INFO);
+    if (inner != null && !Bytes.equals(inner.getRow(), bucketKey)
+        && inner.containsColumn(FAMILY_INFO, COLUMN_PREFIX_LENGTH)) {
+      return true;
+    }
+    if (Bytes.equals(bucketKey, ROOT_KEY)) {
+      return false;
+    }
+    Result outer = indexTable.getRowOrBefore(Bytes.toBytes(key - 1),
+        FAMILY_INFO);
+    int outerPrefixLength = outer == null ? -1 : prefixLengthOf(outer);
+    return outerPrefixLength >= 0
+        && Bytes.compareTo(Bytes.toBytes(ZOrder.lastKey(Bytes.toLong(outer
+            .getRow()), outerPrefixLength)), bucketKey) >= 0;
+  }
+
+  private boolean isMergeable(Result lower, Result upper, int prefixLength) {
+    if (prefixLengthOf(lower) != prefixLength
+        || prefixLengthOf(upper) != prefixLength) {
+      return false;
+    }
+    long lowerSize = Bytes.toLong(lower.getValue(FAMILY_INFO,
         COLUMN_BUCKET_SIZE));
-    int newPrefixLength = prefixLength + 1;
-    if (newPrefixLength > 32 * 2) {
-      return; // exceeds the maximum prefix length.
+    long upperSize = Bytes.toLong(upper.getValue(FAMILY_INFO,
+        COLUMN_BUCKET_SIZE));
+    return lowerSize + upperSize < mergeThreshold;
+  }
+
+  /*
+   * rewrites the merged bucket as its lower half again, after the upper half
+   * was split before it could be deleted. The upper half kept counting its own
+   * points, so the lower half takes only the lower counters of the merged
+   * bucket.
+   */
+  private void restoreLowerHalf(byte[] lowerKey, int prefixLength)
+      throws IOException {
+    HTable indexTable = this.indexTable.get();
+    while (true) {
+      Result merged = readIndexEntry(lowerKey);
+      if (prefixLengthOf(merged) != prefixLength - 1) {
+        return;
+      }
+      int depth = counterDepth(merged);
+      long[] counts = readCounters(merged, depth);
+      if (indexTable.checkAndPut(lowerKey, FAMILY_INFO, COLUMN_BUCKET_SIZE,
+          merged.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE), toIndexEntry(
+              lowerKey, prefixLength, lowerHalfOf(counts), depth - 1))) {
+        break;
+      }
+    }
+    indexTable.incrementColumnValue(ROOT_KEY, FAMILY_INFO, COLUMN_GENERATION,
+        1L);
+    directory.invalidate();
+  }
+
+  /**
+   * packs the cells of a bucket and its existing chunks into new chunks of
+   * sorted points. The new chunks are written only if the chunks did not
+   * change since they were read, then the packed cells are deleted. Only the
+   * versions of the cells which were read are deleted, so a point inserted
+   * again meanwhile stays as a cell.
+   * 
+   * Deletions of points of the bucket by other clients may race with the pack
+   * and leave a deleted point in a chunk, so only buckets which did not change
+   * for a while should be packed, see {@link #packColdBuckets(long)}.
+   * 
+   * @param bucketKey
+   * @return true if cells were packed
+   * @throws IOException
+   */
+  boolean packBucket(byte[] bucketKey) throws IOException {
+    if (!packing) {
+      return false;
+    }
+    Result bucketEntry = readIndexEntry(bucketKey);
+    int prefixLength = prefixLengthOf(bucketEntry);
+    if (prefixLength < 0) {
+      return false;
+    }
+    long modified = bucketEntry.getColumnLatest(FAMILY_INFO,
+        COLUMN_BUCKET_SIZE).getTimestamp();
+    long start = metrics.start();
+    HTable dataTable = this.dataTable.get();
+    Result block = readBlock(bucketKey);
+    byte[] stamp = block.getValue(PackedBlock.FAMILY, PackedBlock.STAMP);
+    List<PackedBlock.Key> points = new ArrayList<PackedBlock.Key>();
+    List<byte[]> oldChunks = new ArrayList<byte[]>();
+    if (stamp != null) {
+      for (KeyValue kv : block.raw()) {
+        if (kv.getQualifierLength() > 0) {
+          oldChunks.add(kv.getQualifier());
+        }
+      }
+      readChunks(block, stamp, points);
     }
 
-    byte[] newChildKey0 = bucketKey;
-    byte[] newChildKey1 = Utils.makeBit(bucketKey, prefixLength);
-    Scan scan = new Scan(newChildKey0, newChildKey1);
+    List<Delete> deletes = new ArrayList<Delete>();
+    Scan scan = new Scan(bucketKey, Bytes.toBytes(ZOrder.lastKey(Bytes
+        .toLong(bucketKey), prefixLength) + 1));
     scan.addFamily(Bucket.FAMILY);
     scan.setCaching(1000);
     ResultScanner results = dataTable.getScanner(scan);
-    long newSize = 0L;
-    for (Result result : results) {
-      newSize += result.getFamilyMap(Bucket.FAMILY).size();
-      System.out.println(result.getFamilyMap(Bucket.FAMILY));
+    try {
+      for (Result result : results) {
+        long key = Bytes.toLong(result.getRow());
+        Delete delete = new Delete(result.getRow());
+        for (KeyValue kv : result.raw()) {
+          byte[] qualifier = kv.getQualifier();
+          points.add(new PackedBlock.Key(key, pointFormat.toId(qualifier)));
+          delete.deleteColumn(Bucket.FAMILY, qualifier, kv.getTimestamp());
+        }
+        deletes.add(delete);
+      }
+    } finally {
+      results.close();
+    }
+    if (deletes.isEmpty()) {
+      markPacked(bucketKey, modified);
+      return false;
+    }
+
+    // a point may be both in a chunk and a cell after an interrupted unpack
+    Collections.sort(points);
+    long[] keys = new long[points.size()];
+    long[] ids = new long[points.size()];
+    int n = 0;
+    for (PackedBlock.Key point : points) {
+      if (n == 0 || keys[n - 1] != point.key || ids[n - 1] != point.id) {
+        keys[n] = point.key;
+        ids[n] = point.id;
+        n++;
+      }
+    }
+    long modCount = stamp == null ? 0L : PackedBlock.modCountOf(stamp);
+    long packId = modCount + 1;
+    Put put = new Put(bucketKey);
+    put.add(PackedBlock.FAMILY, PackedBlock.STAMP, PackedBlock.toStamp(
+        modCount + 1, packId, pointFormat.getVersion()));
+    for (int from = 0, chunk = 0; from < n; from += chunkSize, chunk++) {
+      put.add(PackedBlock.FAMILY, PackedBlock.toQualifier(packId, chunk),
+          PackedBlock.encode(keys, ids, from, Math.min(from + chunkSize, n)));
+    }
+    if (!dataTable.checkAndPut(bucketKey, PackedBlock.FAMILY,
+        PackedBlock.STAMP, stamp, put)) {
+      return false; // the next pass packs the bucket again
     }
+    if (prefixLengthOf(readIndexEntry(bucketKey)) != prefixLength) {
+      // the bucket was split or merged meanwhile
+      unpackBucket(bucketKey);
+      return false;
+    }
+    if (!oldChunks.isEmpty()) {
+      Delete delete = new Delete(bucketKey);
+      for (byte[] qualifier : oldChunks) {
+        delete.deleteColumns(PackedBlock.FAMILY, qualifier);
+      }
+      deletes.add(delete);
+    }
+    dataTable.delete(deletes);
+    markPacked(bucketKey, modified);
+    metrics.stop(Metrics.PACK, start);
+    return true;
+  }
+
+  /**
+   * writes the points in the chunks of a bucket back as cells, then deletes
+   * the chunks if they did not change meanwhile. Otherwise the cells of points
+   * deleted from the chunks meanwhile are deleted again, and so on.
+   * 
+   * @param bucketKey
+   * @throws IOException
+   */
+  void unpackBucket(byte[] bucketKey) throws IOException {
+    if (!packing) {
+      return;
+    }
+    HTable dataTable = this.dataTable.get();
+    Set<PackedBlock.Key> written = Collections.emptySet();
+    while (true) {
+      Result block = readBlock(bucketKey);
+      byte[] stamp = block.getValue(PackedBlock.FAMILY, PackedBlock.STAMP);
+      if (stamp == null) {
+        return;
+      }
+      Set<PackedBlock.Key> points = new HashSet<PackedBlock.Key>();
+      readChunks(block, stamp, points);
+      List<Put> puts = new ArrayList<Put>();
+      for (PackedBlock.Key point : points) {
+        if (!written.contains(point)) {
+          Put put = new Put(Bytes.toBytes(point.key));
+          put.add(Bucket.FAMILY, pointFormat.toQualifier(point.id), pointFormat
+              .toValue(new Point(point.id, ZOrder.unzipX(point.key), ZOrder
+                  .unzipY(point.key))));
+          puts.add(put);
+        }
+      }
+      List<Delete> deletes = new ArrayList<Delete>();
+      for (PackedBlock.Key point : written) {
+        if (!points.contains(point)) {
+          Delete delete = new Delete(Bytes.toBytes(point.key));
+          delete.deleteColumns(Bucket.FAMILY, pointFormat
+              .toQualifier(point.id));
+          deletes.add(delete);
+        }
+      }
+      dataTable.put(puts);
+      dataTable.delete(deletes);
+      written = points;
+      Delete delete = new Delete(bucketKey);
+      delete.deleteFamily(PackedBlock.FAMILY);
+      if (dataTable.checkAndDelete(bucketKey, PackedBlock.FAMILY,
+          PackedBlock.STAMP, stamp, delete)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * deletes a point from the chunks of a bucket.
+   * 
+   * @param bucketKey
+   * @param key
+   *          the Z-order value of the point
+   * @param id
+   * @return true if the point was in a chunk and is deleted by this call
+   * @throws IOException
+   */
+  boolean deletePackedPoint(byte[] bucketKey, long key, long id)
+      throws IOException {
+    if (!packing) {
+      return false;
+    }
+    while (true) {
+      Result block = readBlock(bucketKey);
+      byte[] stamp = block.getValue(PackedBlock.FAMILY, PackedBlock.STAMP);
+      if (stamp == null) {
+        return false;
+      }
+      Put put = removeFromChunks(bucketKey, block, stamp, key, id);
+      if (put == null) {
+        return false;
+      }
+      if (dataTable.get().checkAndPut(bucketKey, PackedBlock.FAMILY,
+          PackedBlock.STAMP, stamp, put)) {
+        return true;
+      }
+    }
+  }
+
+  /*
+   * builds a put which rewrites the chunk holding the point without it, or
+   * returns null if no chunk holds the point.
+   */
+  private Put removeFromChunks(byte[] bucketKey, Result block, byte[] stamp,
+      long key, long id) {
+    long packId = PackedBlock.packIdOf(stamp);
+    for (KeyValue kv : block.raw()) {
+      byte[] buffer = kv.getBuffer();
+      int offset = kv.getValueOffset();
+      if (!PackedBlock.isChunkOf(buffer, kv.getQualifierOffset(), kv
+          .getQualifierLength(), packId)
+          || key < PackedBlock.firstKey(buffer, offset)
+          || key > PackedBlock.lastKey(buffer, offset)) {
+        continue;
+      }
+      int n = PackedBlock.count(buffer, offset);
+      long[] keys = new long[n];
+      long[] ids = new long[n];
+      PackedBlock.decode(buffer, offset, keys, ids);
+      for (int i = 0; i < n; i++) {
+        if (keys[i] == key && ids[i] == id) {
+          System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+          System.arraycopy(ids, i + 1, ids, i, n - i - 1);
+          Put put = new Put(bucketKey);
+          put.add(PackedBlock.FAMILY, PackedBlock.STAMP, PackedBlock.toStamp(
+              PackedBlock.modCountOf(stamp) + 1, packId, PackedBlock
+                  .formatOf(stamp)));
+          put.add(PackedBlock.FAMILY, kv.getQualifier(), PackedBlock.encode(
+              keys, ids, 0, n - 1));
+          return put;
+        }
+      }
+    }
+    return null;
+  }
 
-    Put put0 = new Put(newChildKey0);
-    put0.add(FAMILY_INFO, COLUMN_PREFIX_LENGTH, Bytes.toBytes(newPrefixLength));
-    put0.add(FAMILY_INFO, COLUMN_BUCKET_SIZE, Bytes.toBytes(newSize));
-    Put put1 = new Put(newChildKey1);
-    put1.add(FAMILY_INFO, COLUMN_PREFIX_LENGTH, Bytes.toBytes(newPrefixLength));
-    put1.add(FAMILY_INFO, COLUMN_BUCKET_SIZE,
-        Bytes.toBytes(bucketSize - newSize));
-    List<Put> puts = new ArrayList<Put>(2);
-    puts.add(put0);
-    puts.add(put1);
-    indexTable.put(puts);
-    maySplit(newChildKey0, newSize);
-    maySplit(newChildKey1, bucketSize - newSize);
+  /**
+   * packs buckets which did not change for the given time and were not
+   * packed since their last change.
+   * 
+   * @param coldAge
+   *          milliseconds a bucket must be left unchanged
+   * @return the number of packed buckets
+   * @throws IOException
+   */
+  public int packColdBuckets(long coldAge) throws IOException {
+    if (!packing) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    List<byte[]> cold = new ArrayList<byte[]>();
+    Scan scan = new Scan();
+    scan.addFamily(FAMILY_INFO);
+    scan.setCaching(1000);
+    ResultScanner entries = indexTable.get().getScanner(scan);
+    try {
+      for (Result entry : entries) {
+        if (!entry.containsColumn(FAMILY_INFO, COLUMN_PREFIX_LENGTH)) {
+          continue;
+        }
+        long modified = entry.getColumnLatest(FAMILY_INFO, COLUMN_BUCKET_SIZE)
+            .getTimestamp();
+        byte[] packed = entry.getValue(FAMILY_INFO, COLUMN_PACKED);
+        if (now - modified >= coldAge
+            && (packed == null || Bytes.toLong(packed) < modified)) {
+          cold.add(entry.getRow());
+        }
+      }
+    } finally {
+      entries.close();
+    }
+    int packed = 0;
+    for (byte[] bucketKey : cold) {
+      if (packBucket(bucketKey)) {
+        packed++;
+      }
+    }
+    return packed;
+  }
+
+  private Result readBlock(byte[] bucketKey) throws IOException {
+    Get get = new Get(bucketKey);
+    get.addFamily(PackedBlock.FAMILY);
+    return dataTable.get().get(get);
+  }
+
+  /*
+   * adds the points in the chunks named by the stamp.
+   */
+  private void readChunks(Result block, byte[] stamp,
+      Collection<PackedBlock.Key> points) {
+    long packId = PackedBlock.packIdOf(stamp);
+    long[] keys = new long[0];
+    long[] ids = new long[0];
+    for (KeyValue kv : block.raw()) {
+      byte[] buffer = kv.getBuffer();
+      if (!PackedBlock.isChunkOf(buffer, kv.getQualifierOffset(), kv
+          .getQualifierLength(), packId)) {
+        continue;
+      }
+      int n = PackedBlock.count(buffer, kv.getValueOffset());
+      if (keys.length < n) {
+        keys = new long[n];
+        ids = new long[n];
+      }
+      PackedBlock.decode(buffer, kv.getValueOffset(), keys, ids);
+      for (int i = 0; i < n; i++) {
+        points.add(new PackedBlock.Key(keys[i], ids[i]));
+      }
+    }
+  }
+
+  /*
+   * records that the bucket holds no cells since the given change
+   */
+  private void markPacked(byte[] bucketKey, long modified) throws IOException {
+    Put put = new Put(bucketKey);
+    put.add(FAMILY_INFO, COLUMN_PACKED, Bytes.toBytes(modified));
+    indexTable.get().put(put);
+  }
+
+  private Result readIndexEntry(byte[] bucketKey) throws IOException {
+    Get get = new Get(bucketKey);
+    get.addFamily(FAMILY_INFO);
+    return indexTable.get().get(get);
+  }
+
+  private int prefixLengthOf(Result bucketEntry) {
+    byte[] value = bucketEntry.getValue(FAMILY_INFO, COLUMN_PREFIX_LENGTH);
+    return value == null ? -1 : Bytes.toInt(value);
+  }
+
+  /*
+   * builds the index entry of a merged bucket from its quarters.
+   */
+  private static Put toMergedEntry(byte[] mergedKey, int prefixLength,
+      long[] quarters, int depth) {
+    long[] counts = depth == 2 ? quarters : new long[] {
+        quarters[0] + quarters[1], quarters[2] + quarters[3] };
+    return toIndexEntry(mergedKey, prefixLength, counts, depth);
+  }
+
+  /*
+   * the counters of a bucket which a merge takes over: its halves at depth 1,
+   * or its size at depth 0.
+   */
+  private long[] mergeCountsOf(Result bucketEntry, int depth) {
+    return depth == 1 ? readCounters(bucketEntry, 1) : new long[] { Bytes
+        .toLong(bucketEntry.getValue(FAMILY_INFO, COLUMN_BUCKET_SIZE)) };
+  }
+
+  /*
+   * places the counters of the lower and the upper half of a merged bucket in
+   * its quarters. Halves fill a quarter each, and a size fills the first
+   * quarter of its half.
+   */
+  static long[] mergedQuarters(long[] lower, long[] upper) {
+    long[] quarters = new long[1 << MAX_COUNTER_DEPTH];
+    int half = quarters.length / 2;
+    int width = half / lower.length;
+    for (int i = 0; i < lower.length; i++) {
+      quarters[i * width] = lower[i];
+      quarters[half + i * width] = upper[i];
+    }
+    return quarters;
+  }
+
+  static long[] lowerHalfOf(long[] counts) {
+    long[] lower = new long[counts.length / 2];
+    System.arraycopy(counts, 0, lower, 0, lower.length);
+    return lower;
+  }
+
+  static long[] difference(long[] counts, long[] base) {
+    long[] difference = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      difference[i] = counts[i] - base[i];
+    }
+    return difference;
+  }
+
+  private int counterDepth(Result bucketEntry) {
+    byte[] value = bucketEntry.getValue(FAMILY_INFO, COLUMN_COUNTER_DEPTH);
+    return value == null ? 0 : Bytes.toInt(value);
+  }
+
+  private long[] readCounters(Result bucketEntry, int depth) {
+    byte[][] columns = depth == 1 ? COLUMN_HALF_SIZES : COLUMN_QUARTER_SIZES;
+    long[] counts = new long[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      byte[] value = bucketEntry.getValue(FAMILY_INFO, columns[i]);
+      counts[i] = value == null ? 0L : Bytes.toLong(value);
+    }
+    return counts;
+  }
+
+  /*
+   * scans a cell and counts its points by row key.
+   */
+  private Histogram scanHistogram(Cell cell) throws IOException {
+    Scan scan = new Scan(Bytes.toBytes(cell.key), Bytes.toBytes(ZOrder
+        .lastKey(cell.key, cell.prefixLength) + 1));
+    scan.addFamily(Bucket.FAMILY);
+    scan.setCaching(1000);
+    ResultScanner results = dataTable.get().getScanner(scan);
+    Histogram histogram = new Histogram();
+    try {
+      for (Result result : results) {
+        histogram.add(Bytes.toLong(result.getRow()), result.size());
+      }
+    } finally {
+      results.close();
+    }
+    return histogram;
+  }
+
+  /*
+   * builds an index entry of a bucket whose points are counted by the next
+   * depth bits of their keys.
+   */
+  static Put toIndexEntry(byte[] bucketKey, int prefixLength, long[] counts,
+      int depth) {
+    long[] halves = new long[2];
+    long[] quarters = new long[4];
+    if (depth == 2) {
+      quarters = counts;
+    }
+    if (depth >= 1) {
+      int width = counts.length / 2;
+      for (int i = 0; i < counts.length; i++) {
+        halves[i / width] += counts[i];
+      }
+    }
+    Put put = new Put(bucketKey);
+    put.add(FAMILY_INFO, COLUMN_PREFIX_LENGTH, Bytes.toBytes(prefixLength));
+    put.add(FAMILY_INFO, COLUMN_PREFIX_TAG, Bytes.toBytes((long) prefixLength));
+    put.add(FAMILY_INFO, COLUMN_BUCKET_SIZE, Bytes.toBytes(sum(counts)));
+    put.add(FAMILY_INFO, COLUMN_COUNTER_DEPTH, Bytes.toBytes(depth));
+    for (int i = 0; i < halves.length; i++) {
+      put.add(FAMILY_INFO, COLUMN_HALF_SIZES[i], Bytes.toBytes(halves[i]));
+    }
+    for (int i = 0; i < quarters.length; i++) {
+      put.add(FAMILY_INFO, COLUMN_QUARTER_SIZES[i], Bytes.toBytes(quarters[i]));
+    }
+    return put;
+  }
+
+  private static long sum(long[] counts) {
+    long sum = 0L;
+    for (long count : counts) {
+      sum += count;
+    }
+    return sum;
   }
 
   /*
@@ -236,7 +1678,9 @@ public class Index implements Closeable {
    */
   @Override
   public void close() throws IOException {
+    Closeables.closeQuietly(splitService);
     Closeables.closeQuietly(dataTable);
     Closeables.closeQuietly(indexTable);
+    metrics.close();
   }
 }
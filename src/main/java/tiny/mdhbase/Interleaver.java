@@ -0,0 +1,273 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+/**
+ * Interleaver
+ * 
+ * Interleaver maps points of any number of dimensions to 64-bit Z-order values
+ * and back. Each dimension gets the same number of bits, at most 31 so that
+ * coordinates are non-negative ints, and bits of the dimensions are
+ * interleaved from the most significant one as [a0,b0,c0,a1,b1,c1,..]. At
+ * most 63 bits are used, and unused leading bits of a value are always 0, so
+ * values are non-negative longs and the root bucket has a prefix length of
+ * that many bits. For example, 3 dimensions get 21 bits each and 4 dimensions
+ * get 15 bits each.
+ * 
+ * Two dimensions are delegated to {@link ZOrder}, so values are compatible
+ * with the 2D index and are computed as fast.
+ * 
+ * @author shoji
+ * 
+ */
+public final class Interleaver {
+
+  private final int dimensions;
+
+  private final int bitsPerDimension;
+
+  // bits of each dimension
+  private final long[] masks;
+
+  /**
+   * 
+   * @param dimensions
+   *          the number of dimensions, from 1 to 63
+   */
+  public Interleaver(int dimensions) {
+    if (dimensions < 1 || dimensions > 63) {
+      throw new IllegalArgumentException("dimensions must be from 1 to 63: "
+          + dimensions);
+    }
+    this.dimensions = dimensions;
+    this.bitsPerDimension = Math.min(31, 63 / dimensions);
+    this.masks = new long[dimensions];
+    for (int pos = 0; pos < dimensions * bitsPerDimension; pos++) {
+      masks[dimensionOf(pos)] |= 1L << pos;
+    }
+  }
+
+  /*
+   * the dimension of a bit position. The first dimension takes the highest
+   * bit of each group.
+   */
+  private int dimensionOf(int pos) {
+    return dimensions - 1 - pos % dimensions;
+  }
+
+  public int getDimensions() {
+    return dimensions;
+  }
+
+  /**
+   * 
+   * @return the number of bits of each coordinate
+   */
+  public int getBitsPerDimension() {
+    return bitsPerDimension;
+  }
+
+  /**
+   * 
+   * @return the prefix length of the root bucket, namely the number of unused
+   *         leading bits
+   */
+  public int getRootPrefixLength() {
+    return 64 - dimensions * bitsPerDimension;
+  }
+
+  /**
+   * 
+   * @param coords
+   * @return the Z-order value of the coordinates
+   * @throws IllegalArgumentException
+   *           if a coordinate does not fit in the bits of its dimension
+   */
+  public long interleave(int[] coords) {
+    if (coords.length != dimensions) {
+      throw new IllegalArgumentException(String.format(
+          "%d coordinates for %d dimensions", coords.length, dimensions));
+    }
+    for (int coord : coords) {
+      if (coord < 0 || (coord >>> bitsPerDimension) != 0) {
+        throw new IllegalArgumentException(String.format(
+            "coordinate %d does not fit in %d bits", coord, bitsPerDimension));
+      }
+    }
+    if (dimensions == 2) {
+      return ZOrder.zip(coords[0], coords[1]);
+    }
+    long z = 0L;
+    for (int d = 0; d < dimensions; d++) {
+      int shift = dimensions - 1 - d;
+      for (int i = 0; i < bitsPerDimension; i++) {
+        z |= (long) ((coords[d] >>> i) & 1) << (i * dimensions + shift);
+      }
+    }
+    return z;
+  }
+
+  /**
+   * 
+   * @param z
+   * @param dimension
+   * @return the coordinate of the dimension of the Z-order value
+   */
+  public int coordinate(long z, int dimension) {
+    if (dimensions == 2) {
+      return dimension == 0 ? ZOrder.unzipX(z) : ZOrder.unzipY(z);
+    }
+    int shift = dimensions - 1 - dimension;
+    int coord = 0;
+    for (int i = 0; i < bitsPerDimension; i++) {
+      coord |= (int) ((z >>> (i * dimensions + shift)) & 1) << i;
+    }
+    return coord;
+  }
+
+  /**
+   * 
+   * @param z
+   * @return the coordinates of the Z-order value
+   */
+  public int[] deinterleave(long z) {
+    int[] coords = new int[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      coords[d] = coordinate(z, d);
+    }
+    return coords;
+  }
+
+  /**
+   * 
+   * @param bucketKey
+   * @param prefixLength
+   * @return the box of sub-space [bucketKey, prefixLength]
+   */
+  public Box bounds(long bucketKey, int prefixLength) {
+    long last = ZOrder.lastKey(bucketKey, prefixLength);
+    Range[] ranges = new Range[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      ranges[d] = new Range(coordinate(bucketKey, d), coordinate(last, d));
+    }
+    return new Box(ranges);
+  }
+
+  /**
+   * 
+   * @param box
+   * @return the Z-order value of the lower corner of the box
+   */
+  public long lowerCorner(Box box) {
+    int[] coords = new int[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      coords[d] = box.get(d).min;
+    }
+    return interleave(coords);
+  }
+
+  /**
+   * 
+   * @param box
+   * @return the Z-order value of the upper corner of the box
+   */
+  public long upperCorner(Box box) {
+    int[] coords = new int[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      coords[d] = box.get(d).max;
+    }
+    return interleave(coords);
+  }
+
+  /**
+   * 
+   * @param z
+   * @param zmin
+   *          the Z-order value of the lower corner of the box
+   * @param zmax
+   *          the Z-order value of the upper corner of the box
+   * @return true if z is in the box
+   */
+  public boolean inBox(long z, long zmin, long zmax) {
+    if (dimensions == 2) {
+      return ZOrder.inBox(z, zmin, zmax);
+    }
+    for (long mask : masks) {
+      long v = z & mask;
+      if (lessThan(v, zmin & mask) || lessThan(zmax & mask, v)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * computes the smallest Z-order value in the box which is not less than z,
+   * like {@link ZOrder#bigmin(long, long, long)}.
+   * 
+   * @param z
+   * @param zmin
+   *          the Z-order value of the lower corner of the box
+   * @param zmax
+   *          the Z-order value of the upper corner of the box
+   * @return the smallest Z-order value in the box which is not less than z, or
+   *         -1 if there is no such value
+   */
+  public long bigmin(long z, long zmin, long zmax) {
+    if (dimensions == 2) {
+      return ZOrder.bigmin(z, zmin, zmax);
+    }
+    if (lessThan(z, zmin)) {
+      return zmin;
+    }
+    if (lessThan(zmax, z)) {
+      return -1L;
+    }
+    if (inBox(z, zmin, zmax)) {
+      return z;
+    }
+    long bigmin = -1L;
+    long min = zmin;
+    long max = zmax;
+    for (int pos = dimensions * bitsPerDimension - 1; pos >= 0; pos--) {
+      long bit = 1L << pos;
+      // lower bits of the same dimension
+      long lower = (bit - 1) & masks[dimensionOf(pos)];
+      boolean zb = (z & bit) != 0;
+      boolean minb = (min & bit) != 0;
+      boolean maxb = (max & bit) != 0;
+      if (!zb && !minb && maxb) {
+        // the box straddles this bit. the upper half is the candidate.
+        bigmin = (min | bit) & ~lower;
+        max = (max & ~bit) | lower;
+      } else if (!zb && minb && maxb) {
+        return min;
+      } else if (zb && !minb && !maxb) {
+        return bigmin;
+      } else if (zb && !minb && maxb) {
+        min = (min | bit) & ~lower;
+      }
+    }
+    return bigmin;
+  }
+
+  /*
+   * unsigned comparison
+   */
+  private static boolean lessThan(long a, long b) {
+    return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * KnnHeap
+ * 
+ * KnnHeap keeps the k nearest candidates of a nearest neighbor query in a
+ * bounded max-heap of primitive arrays, keyed on squared distances. A point
+ * no nearer than the k-th candidate is rejected by a single comparison, and
+ * a nearer one replaces the k-th candidate in O(log k). Points at equal
+ * distances are all kept as long as there is room.
+ * 
+ * Coordinates are non-negative ints, so squared distances fit in a long.
+ * 
+ * The arrays start small and grow up to k as candidates arrive, so that a
+ * large k costs no more than the points actually found.
+ * 
+ * @author shoji
+ * 
+ */
+final class KnnHeap {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int k;
+  private long[] distances;
+  private long[] ids;
+  private int[] xs;
+  private int[] ys;
+  private int size = 0;
+
+  /**
+   * 
+   * @param k
+   *          the number of candidates to keep
+   */
+  KnnHeap(int k) {
+    checkArgument(k > 0);
+    this.k = k;
+    int capacity = Math.min(k, INITIAL_CAPACITY);
+    this.distances = new long[capacity];
+    this.ids = new long[capacity];
+    this.xs = new int[capacity];
+    this.ys = new int[capacity];
+  }
+
+  static long squaredDistance(int x1, int y1, int x2, int y2) {
+    long dx = (long) x1 - x2;
+    long dy = (long) y1 - y2;
+    return dx * dx + dy * dy;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * 
+   * @return the squared distance of the k-th candidate, or Long.MAX_VALUE if
+   *         fewer than k candidates are kept
+   */
+  long maxDistance() {
+    return isFull() ? distances[0] : Long.MAX_VALUE;
+  }
+
+  /**
+   * offers a point as a candidate.
+   * 
+   * @param id
+   * @param x
+   * @param y
+   * @param distance
+   *          the squared distance of the point from the query point
+   * @return true if the point is kept
+   */
+  boolean offer(long id, int x, int y, long distance) {
+    if (size < k) {
+      if (size == distances.length) {
+        grow();
+      }
+      set(size, id, x, y, distance);
+      siftUp(size++);
+      return true;
+    }
+    if (distance >= distances[0]) {
+      return false;
+    }
+    set(0, id, x, y, distance);
+    siftDown(0);
+    return true;
+  }
+
+  /**
+   * offers all points of a block as candidates.
+   * 
+   * @param block
+   * @param qx
+   *          x of the query point
+   * @param qy
+   *          y of the query point
+   */
+  void offerAll(PointBlock block, int qx, int qy) {
+    long[] blockIds = block.ids();
+    int[] blockXs = block.xs();
+    int[] blockYs = block.ys();
+    for (int i = 0, n = block.size(); i < n; i++) {
+      int x = blockXs[i];
+      int y = blockYs[i];
+      offer(blockIds[i], x, y, squaredDistance(qx, qy, x, y));
+    }
+  }
+
+  /**
+   * 
+   * @return the candidates in ascending order of their distances
+   */
+  List<Point> toSortedList() {
+    List<Point> results = new ArrayList<Point>(size);
+    // a heap sort on copies, so that the heap is left intact
+    KnnHeap copy = new KnnHeap(k);
+    copy.distances = Arrays.copyOf(distances, size);
+    copy.ids = Arrays.copyOf(ids, size);
+    copy.xs = Arrays.copyOf(xs, size);
+    copy.ys = Arrays.copyOf(ys, size);
+    copy.size = size;
+    while (copy.size > 0) {
+      results.add(new Point(copy.ids[0], copy.xs[0], copy.ys[0]));
+      copy.size--;
+      copy.move(copy.size, 0);
+      copy.siftDown(0);
+    }
+    Collections.reverse(results);
+    return results;
+  }
+
+  /*
+   * doubles the capacity, up to k
+   */
+  private void grow() {
+    int capacity = (int) Math.min((long) distances.length * 2, k);
+    distances = Arrays.copyOf(distances, capacity);
+    ids = Arrays.copyOf(ids, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+  }
+
+  private void set(int i, long id, int x, int y, long distance) {
+    distances[i] = distance;
+    ids[i] = id;
+    xs[i] = x;
+    ys[i] = y;
+  }
+
+  private void move(int from, int to) {
+    set(to, ids[from], xs[from], ys[from], distances[from]);
+  }
+
+  private void swap(int i, int j) {
+    long distance = distances[i];
+    long id = ids[i];
+    int x = xs[i];
+    int y = ys[i];
+    move(j, i);
+    set(j, id, x, y, distance);
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (distances[parent] >= distances[i]) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && distances[child + 1] > distances[child]) {
+        child++;
+      }
+      if (distances[i] >= distances[child]) {
+        break;
+      }
+      swap(i, child);
+      i = child;
+    }
+  }
+}
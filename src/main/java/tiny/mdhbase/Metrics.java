@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Metrics
+ * 
+ * Metrics is a registry of the operation metrics of a client. Latencies of
+ * operations are recorded in microseconds, along with distributions such as
+ * buckets touched per query and bucket sizes at split time.
+ * 
+ * Each metric is published as an MBean named
+ * tiny.mdhbase:type=Metrics,table=[table],instance=[n],name=[metric], and can
+ * be pushed to {@link MetricsReporter}s. When metrics are disabled, recording
+ * costs a single branch and the clock is never read.
+ * 
+ * @author shoji
+ * 
+ */
+public class Metrics implements Closeable {
+
+  private static final Log LOG = LogFactory.getLog(Metrics.class);
+
+  /**
+   * true to record metrics
+   */
+  public static final String METRICS_ENABLED_KEY =
+      "tiny.mdhbase.metrics.enabled";
+
+  public static final boolean DEFAULT_METRICS_ENABLED = true;
+
+  /**
+   * true to publish metrics over JMX
+   */
+  public static final String METRICS_JMX_KEY = "tiny.mdhbase.metrics.jmx";
+
+  public static final boolean DEFAULT_METRICS_JMX = true;
+
+  // latencies
+  public static final String INSERT = "insert";
+  public static final String INSERT_BATCH = "insertBatch";
+  public static final String DELETE = "delete";
+  public static final String GET = "get";
+  public static final String RANGE_QUERY = "rangeQuery";
+  public static final String RANGE_COUNT = "rangeCount";
+  public static final String NEAREST_NEIGHBOR = "nearestNeighbor";
+  public static final String SPLIT = "split";
+  public static final String MERGE = "merge";
+  public static final String PACK = "pack";
+  public static final String INDEX_LOOKUP = "indexLookup";
+  public static final String BUCKET_SCAN = "bucketScan";
+
+  // distributions
+  public static final String BUCKETS_PER_QUERY = "bucketsPerQuery";
+  public static final String ROWS_FETCHED = "rowsFetched";
+  public static final String POINTS_RETURNED = "pointsReturned";
+  public static final String SPLIT_BUCKET_SIZE = "splitBucketSize";
+  public static final String SPLIT_NEW_BUCKETS = "splitNewBuckets";
+
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  private final boolean enabled;
+
+  // filled on construction, and read-only after that
+  private final Map<String, Stat> stats = new TreeMap<String, Stat>();
+
+  private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+  private final String namePrefix;
+
+  private ScheduledExecutorService reporters = null;
+
+  /**
+   * 
+   * @param tableName
+   *          the table the metrics belong to
+   * @param enabled
+   *          false to record nothing
+   * @param jmx
+   *          true to publish metrics over JMX
+   */
+  public Metrics(String tableName, boolean enabled, boolean jmx) {
+    this.enabled = enabled;
+    this.namePrefix = String.format("tiny.mdhbase:type=Metrics,table=%s,"
+        + "instance=%d", ObjectName.quote(tableName),
+        INSTANCES.incrementAndGet());
+    if (enabled) {
+      for (String name : new String[] { INSERT, INSERT_BATCH, DELETE, GET,
+          RANGE_QUERY, RANGE_COUNT, NEAREST_NEIGHBOR, SPLIT, MERGE, PACK,
+          INDEX_LOOKUP, BUCKET_SCAN,
+          BUCKETS_PER_QUERY, ROWS_FETCHED, POINTS_RETURNED,
+          SPLIT_BUCKET_SIZE, SPLIT_NEW_BUCKETS }) {
+        stats.put(name, new Stat());
+      }
+      if (jmx) {
+        registerMBeans();
+      }
+    }
+  }
+
+  private void registerMBeans() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+      try {
+        ObjectName name = new ObjectName(namePrefix + ",name="
+            + entry.getKey());
+        server.registerMBean(entry.getValue(), name);
+        registered.add(name);
+      } catch (JMException e) {
+        LOG.warn("failed to register metric " + entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * 
+   * @return true if metrics are recorded
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * starts timing an operation.
+   * 
+   * @return a start time to pass to {@link #stop(String, long)}
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  /**
+   * records the latency of an operation.
+   * 
+   * @param name
+   * @param start
+   *          the time returned by {@link #start()}
+   */
+  public void stop(String name, long start) {
+    if (enabled) {
+      stats.get(name).update((System.nanoTime() - start) / 1000);
+    }
+  }
+
+  /**
+   * records a value of a distribution.
+   * 
+   * @param name
+   * @param value
+   */
+  public void update(String name, long value) {
+    if (enabled) {
+      stats.get(name).update(value);
+    }
+  }
+
+  /**
+   * 
+   * @return metrics by name
+   */
+  public Map<String, Stat> getStats() {
+    return Collections.unmodifiableMap(stats);
+  }
+
+  /**
+   * reports metrics periodically in a background thread.
+   * 
+   * @param reporter
+   * @param period
+   *          milliseconds between reports
+   */
+  public synchronized void addReporter(final MetricsReporter reporter,
+      long period) {
+    if (reporters == null) {
+      reporters = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+          "mdhbase-metrics"));
+    }
+    reporters.scheduleAtFixedRate(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          reporter.report(getStats());
+        } catch (RuntimeException e) {
+          LOG.warn("metrics reporter failed", e);
+        }
+      }
+
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * stops reporters and unregisters the MBeans.
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public synchronized void close() {
+    if (reporters != null) {
+      reporters.shutdownNow();
+      reporters = null;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registered) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        LOG.warn("failed to unregister metric " + name, e);
+      }
+    }
+    registered.clear();
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Map;
+
+/**
+ * MetricsReporter
+ * 
+ * MetricsReporter receives the metrics of a client periodically.
+ * 
+ * @see Metrics#addReporter(MetricsReporter, long)
+ * @author shoji
+ * 
+ */
+public interface MetricsReporter {
+
+  /**
+   * 
+   * @param stats
+   *          metrics by name. The stats are live and keep changing.
+   */
+  void report(Map<String, Stat> stats);
+}
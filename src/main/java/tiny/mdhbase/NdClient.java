@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * NdClient
+ * 
+ * NdClient stores points of any number of dimensions, such as (x, y, altitude)
+ * or (x, y, z, time), so that every dimension prunes buckets in the index.
+ * Buckets, counters, splits and merges are shared with the 2D {@link Client};
+ * only the mapping of points to row keys, see {@link Interleaver}, depends on
+ * the number of dimensions.
+ * 
+ * A range query scans the key intervals of runs of buckets which intersect
+ * with the query box, and {@link BoxFilter} skips rows out of the box on
+ * region servers.
+ * 
+ * @author shoji
+ * 
+ */
+public class NdClient implements Closeable {
+
+  private final Index index;
+
+  private final Interleaver interleaver;
+
+  private final PointFormat format;
+
+  private final Metrics metrics;
+
+  /**
+   * 
+   * @param config
+   * @param tableName
+   * @param splitThreshold
+   * @param dimensions
+   *          the number of dimensions of points
+   * @throws IOException
+   *           if the table exists with another number of dimensions, or packs
+   *           its buckets
+   */
+  public NdClient(Configuration config, String tableName, int splitThreshold,
+      int dimensions) throws IOException {
+    // points are read and written as cells only, so buckets are never packed
+    Configuration cellsOnly = new Configuration(config);
+    cellsOnly.setBoolean(Index.PACKING_KEY, false);
+    this.index = new Index(cellsOnly, tableName, splitThreshold,
+        new byte[0][], dimensions);
+    if (index.isPacking()) {
+      index.close();
+      throw new IOException("table " + tableName
+          + " packs its buckets, use Client");
+    }
+    this.interleaver = index.getInterleaver();
+    this.format = index.getPointFormat();
+    this.metrics = index.getMetrics();
+  }
+
+  public void insert(NdPoint p) throws IOException {
+    long start = metrics.start();
+    byte[] row = toRow(p);
+    Entry<byte[], Integer> bucketEntry = index.lookupBucket(row);
+    Put put = new Put(row);
+    put.add(Bucket.FAMILY, format.toQualifier(p.id), toValue(p));
+    index.dataTable().put(put);
+    index.updateCounters(bucketEntry.getKey(), bucketEntry.getValue(),
+        Collections.singletonList(row), 1L);
+    metrics.stop(Metrics.INSERT, start);
+  }
+
+  /**
+   * deletes a point.
+   * 
+   * @param p
+   *          the point to delete, matched by its id and location
+   * @return true if the point was stored and is deleted
+   * @throws IOException
+   */
+  public boolean delete(NdPoint p) throws IOException {
+    long start = metrics.start();
+    byte[] row = toRow(p);
+    Entry<byte[], Integer> bucketEntry = index.lookupBucket(row);
+    boolean deleted = index.deletePoint(row, format.toQualifier(p.id),
+        toValue(p));
+    if (deleted) {
+      index.updateCounters(bucketEntry.getKey(), bucketEntry.getValue(),
+          Collections.singletonList(row), -1L);
+    }
+    metrics.stop(Metrics.DELETE, start);
+    return deleted;
+  }
+
+  /**
+   * 
+   * @param coords
+   * @return points at the coordinates
+   * @throws IOException
+   */
+  public Iterable<NdPoint> get(int... coords) throws IOException {
+    long start = metrics.start();
+    Get get = new Get(Bytes.toBytes(interleaver.interleave(coords)));
+    get.addFamily(Bucket.FAMILY);
+    List<NdPoint> found = new ArrayList<NdPoint>();
+    Result result = index.dataTable().get(get);
+    if (!result.isEmpty()) {
+      addPoints(result, found);
+    }
+    metrics.stop(Metrics.GET, start);
+    return found;
+  }
+
+  /**
+   * 
+   * @param box
+   * @return points within the query box
+   * @throws IOException
+   */
+  public Iterable<NdPoint> rangeQuery(Box box) throws IOException {
+    checkDimensions(box.getDimensions());
+    long start = metrics.start();
+    long zmin = interleaver.lowerCorner(box);
+    long zmax = interleaver.upperCorner(box);
+    List<NdPoint> found = new ArrayList<NdPoint>();
+    long rows = 0L;
+    for (long[] interval : index.bucketIntervals(zmin, zmax)) {
+      Scan scan = new Scan(Bytes.toBytes(Math.max(interval[0], zmin)),
+          Bytes.toBytes(Math.min(interval[1], zmax) + 1));
+      scan.addFamily(Bucket.FAMILY);
+      scan.setCaching(1000);
+      scan.setFilter(new BoxFilter(box));
+      ResultScanner results = index.dataTable().getScanner(scan);
+      try {
+        for (Result result : results) {
+          rows++;
+          addPoints(result, found);
+        }
+      } finally {
+        results.close();
+      }
+    }
+    metrics.stop(Metrics.RANGE_QUERY, start);
+    metrics.update(Metrics.ROWS_FETCHED, rows);
+    metrics.update(Metrics.POINTS_RETURNED, found.size());
+    return found;
+  }
+
+  /**
+   * 
+   * @return the metrics of this client
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  private void checkDimensions(int dimensions) {
+    if (dimensions != interleaver.getDimensions()) {
+      throw new IllegalArgumentException(String.format(
+          "%d dimensions for an index of %d dimensions", dimensions,
+          interleaver.getDimensions()));
+    }
+  }
+
+  private byte[] toRow(NdPoint p) {
+    checkDimensions(p.getDimensions());
+    return Bytes.toBytes(interleaver.interleave(p.getCoordinates()));
+  }
+
+  /*
+   * coordinates are stored in order as ints, so 2D points are stored as
+   * {@link Bucket} stores them. Formats which decode coordinates from row keys
+   * store a marker.
+   */
+  private byte[] toValue(NdPoint p) {
+    if (!format.storesCoordinates()) {
+      return PointFormat.MARKER;
+    }
+    byte[] value = new byte[p.getDimensions() * Bytes.SIZEOF_INT];
+    for (int d = 0; d < p.getDimensions(); d++) {
+      Bytes.putInt(value, d * Bytes.SIZEOF_INT, p.get(d));
+    }
+    return value;
+  }
+
+  /*
+   * decodes the points of a row in place from the buffers of its cells.
+   */
+  private void addPoints(Result result, List<NdPoint> found) {
+    if (result.isEmpty()) {
+      return;
+    }
+    KeyValue[] kvs = result.raw();
+    int[] rowCoords = format.storesCoordinates() ? null : interleaver
+        .deinterleave(Bytes.toLong(kvs[0].getBuffer(), kvs[0].getRowOffset()));
+    for (KeyValue kv : kvs) {
+      if (!kv.matchingFamily(Bucket.FAMILY)) {
+        continue;
+      }
+      byte[] buffer = kv.getBuffer();
+      int[] coords = rowCoords;
+      if (coords == null) {
+        int offset = kv.getValueOffset();
+        coords = new int[kv.getValueLength() / Bytes.SIZEOF_INT];
+        for (int d = 0; d < coords.length; d++) {
+          coords[d] = Bytes.toInt(buffer, offset + d * Bytes.SIZEOF_INT);
+        }
+      }
+      found.add(new NdPoint(format.toId(buffer, kv.getQualifierOffset(), kv
+          .getQualifierLength()), coords));
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    index.close();
+  }
+}
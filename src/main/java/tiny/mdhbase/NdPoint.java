@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Arrays;
+
+/**
+ * NdPoint
+ * 
+ * NdPoint is a point of any number of dimensions, such as (x, y, altitude) or
+ * (x, y, z, time).
+ * 
+ * @author shoji
+ * 
+ */
+public class NdPoint {
+  public final long id;
+  private final int[] coords;
+
+  public NdPoint(long id, int... coords) {
+    for (int coord : coords) {
+      if (coord < 0) {
+        throw new IllegalArgumentException("negative coordinate: " + coord);
+      }
+    }
+    this.id = id;
+    this.coords = coords.clone();
+  }
+
+  public int getDimensions() {
+    return coords.length;
+  }
+
+  /**
+   * 
+   * @param dimension
+   * @return the coordinate on the dimension
+   */
+  public int get(int dimension) {
+    return coords[dimension];
+  }
+
+  /**
+   * 
+   * @return a copy of the coordinates
+   */
+  public int[] getCoordinates() {
+    return coords.clone();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    for (int coord : coords) {
+      buf.append(buf.length() == 0 ? "(" : ",").append(coord);
+    }
+    return String.format("[%d, %s)]", id, buf);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof NdPoint)) {
+      return false;
+    }
+    NdPoint that = (NdPoint) obj;
+    return id == that.id && Arrays.equals(coords, that.coords);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(coords) + (int) (id ^ (id >>> 32));
+  }
+}
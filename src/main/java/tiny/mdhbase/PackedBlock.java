@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * PackedBlock
+ * 
+ * PackedBlock encodes a chunk of the points of a packed bucket into a single
+ * cell. Points are sorted by their Z-order values and stored as columns: the
+ * Z-order values as varint deltas, followed by the ids as zig-zag varint
+ * deltas. Coordinates are decoded from the Z-order values, so a chunk of
+ * nearby points takes a few bytes per point instead of a cell per point.
+ * 
+ * Schema, in the row of the key of a packed bucket:
+ * <ul>
+ * <li>column family: B
+ * <ul>
+ * <li>column: (empty), stamp of the chunks. The modification count, the id of
+ * the pack which wrote the chunks and the version of the point format of the
+ * table. Every change to the chunks is conditioned on the stamp.
+ * <li>column: pack id + chunk number, a chunk. Chunks of other packs than the
+ * one in the stamp are left over by a repack and ignored.
+ * </ul>
+ * </ul>
+ * 
+ * A chunk starts with its first and last Z-order values and its number of
+ * points, so {@link RangeFilter} drops chunks out of a query region without
+ * decoding them.
+ * 
+ * @author shoji
+ * 
+ */
+final class PackedBlock {
+
+  static final byte[] FAMILY = "B".getBytes();
+
+  static final byte[] STAMP = new byte[0];
+
+  private static final int HEADER_SIZE = 2 * Bytes.SIZEOF_LONG
+      + Bytes.SIZEOF_INT;
+
+  private PackedBlock() {
+  }
+
+  /**
+   * 
+   * @param modCount
+   *          the number of changes to the chunks of the bucket
+   * @param packId
+   *          the id of the pack which wrote the chunks
+   * @param format
+   *          the version of the point format of the table
+   * @return a value of the stamp column
+   */
+  static byte[] toStamp(long modCount, long packId, int format) {
+    return Bytes.add(Bytes.toBytes(modCount), Bytes.toBytes(packId), Bytes
+        .toBytes(format));
+  }
+
+  static long modCountOf(byte[] stamp) {
+    return Bytes.toLong(stamp, 0);
+  }
+
+  static long packIdOf(byte[] stamp) {
+    return packIdOf(stamp, 0);
+  }
+
+  static long packIdOf(byte[] buffer, int offset) {
+    return Bytes.toLong(buffer, offset + Bytes.SIZEOF_LONG);
+  }
+
+  static int formatOf(byte[] stamp) {
+    return formatOf(stamp, 0);
+  }
+
+  static int formatOf(byte[] buffer, int offset) {
+    return Bytes.toInt(buffer, offset + 2 * Bytes.SIZEOF_LONG);
+  }
+
+  static byte[] toQualifier(long packId, int chunk) {
+    return Bytes.add(Bytes.toBytes(packId), Bytes.toBytes(chunk));
+  }
+
+  /**
+   * 
+   * @param buffer
+   * @param offset
+   *          the offset of a qualifier of the block family
+   * @param length
+   * @param packId
+   * @return true if the qualifier names a chunk of the pack
+   */
+  static boolean isChunkOf(byte[] buffer, int offset, int length, long packId) {
+    return length == Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT
+        && Bytes.toLong(buffer, offset) == packId;
+  }
+
+  /**
+   * encodes points sorted by their Z-order values and then by their ids.
+   * 
+   * @param keys
+   *          Z-order values of the points
+   * @param ids
+   * @param from
+   *          the first point of the chunk
+   * @param to
+   *          the end of the chunk, exclusive
+   * @return a value of a chunk column
+   */
+  static byte[] encode(long[] keys, long[] ids, int from, int to) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + 4
+        * (to - from));
+    byte[] header = new byte[HEADER_SIZE];
+    if (from < to) {
+      Bytes.putLong(header, 0, keys[from]);
+      Bytes.putLong(header, Bytes.SIZEOF_LONG, keys[to - 1]);
+    } else {
+      // an empty chunk intersects with nothing
+      Bytes.putLong(header, 0, Long.MAX_VALUE);
+      Bytes.putLong(header, Bytes.SIZEOF_LONG, -1L);
+    }
+    Bytes.putInt(header, 2 * Bytes.SIZEOF_LONG, to - from);
+    out.write(header, 0, header.length);
+    long previous = from < to ? keys[from] : 0L;
+    for (int i = from; i < to; i++) {
+      writeVarint(out, keys[i] - previous);
+      previous = keys[i];
+    }
+    previous = 0L;
+    for (int i = from; i < to; i++) {
+      long delta = ids[i] - previous;
+      writeVarint(out, (delta << 1) ^ (delta >> 63));
+      previous = ids[i];
+    }
+    return out.toByteArray();
+  }
+
+  static long firstKey(byte[] buffer, int offset) {
+    return Bytes.toLong(buffer, offset);
+  }
+
+  static long lastKey(byte[] buffer, int offset) {
+    return Bytes.toLong(buffer, offset + Bytes.SIZEOF_LONG);
+  }
+
+  static int count(byte[] buffer, int offset) {
+    return Bytes.toInt(buffer, offset + 2 * Bytes.SIZEOF_LONG);
+  }
+
+  /**
+   * 
+   * @param buffer
+   * @param offset
+   *          the offset of a chunk
+   * @param zmin
+   *          the Z-order value of the lower corner of a query region
+   * @param zmax
+   *          the Z-order value of the upper corner
+   * @return true if the key interval of the chunk holds a Z-order value within
+   *         the query region
+   */
+  static boolean intersects(byte[] buffer, int offset, long zmin, long zmax) {
+    long first = firstKey(buffer, offset);
+    long last = lastKey(buffer, offset);
+    if (last < zmin || first > zmax) {
+      return false;
+    }
+    if (ZOrder.inBox(first, zmin, zmax)) {
+      return true;
+    }
+    long next = ZOrder.bigmin(first, zmin, zmax);
+    return next != -1L && next <= last;
+  }
+
+  /**
+   * decodes a chunk.
+   * 
+   * @param buffer
+   * @param offset
+   *          the offset of a chunk
+   * @param keys
+   *          receives the Z-order values of the points, at least
+   *          {@link #count(byte[], int)} long
+   * @param ids
+   *          receives the ids of the points
+   * @return the number of points
+   */
+  static int decode(byte[] buffer, int offset, long[] keys, long[] ids) {
+    int count = count(buffer, offset);
+    int pos = offset + HEADER_SIZE;
+    long key = firstKey(buffer, offset);
+    for (int i = 0; i < count; i++) {
+      long delta = 0L;
+      for (int shift = 0;; shift += 7) {
+        byte b = buffer[pos++];
+        delta |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      key += delta;
+      keys[i] = key;
+    }
+    long id = 0L;
+    for (int i = 0; i < count; i++) {
+      long zigzag = 0L;
+      for (int shift = 0;; shift += 7) {
+        byte b = buffer[pos++];
+        zigzag |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      id += (zigzag >>> 1) ^ -(zigzag & 1);
+      ids[i] = id;
+    }
+    return count;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  /**
+   * Key identifies a point by its Z-order value and id, so a point read from a
+   * chunk and from a cell is counted once. Keys sort in the order of points in
+   * a chunk.
+   */
+  static final class Key implements Comparable<Key> {
+    final long key;
+    final long id;
+
+    Key(long key, long id) {
+      this.key = key;
+      this.id = id;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(Key that) {
+      if (key != that.key) {
+        return key < that.key ? -1 : 1;
+      }
+      return id < that.id ? -1 : (id == that.id ? 0 : 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) obj;
+      return key == that.key && id == that.id;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      long h = key * 31 + id;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+}
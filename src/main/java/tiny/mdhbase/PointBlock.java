@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * PointBlock
+ * 
+ * PointBlock holds points in columns of primitive arrays: ids, x and y. Range
+ * queries and scanners fill a block in place, so a caller which reuses a block
+ * processes any number of points without allocating an object per point. The
+ * arrays are valid up to {@link #size()} and are overwritten by the next fill.
+ * 
+ * A block grows when a fill does not fit in its capacity, e.g. when a single
+ * row holds more points than the block.
+ * 
+ * @author shoji
+ * 
+ */
+public final class PointBlock {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private long[] ids;
+  private int[] xs;
+  private int[] ys;
+  private int size = 0;
+
+  public PointBlock() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * 
+   * @param capacity
+   *          the number of points a scanner puts in the block at a time
+   */
+  public PointBlock(int capacity) {
+    checkArgument(capacity > 0);
+    this.ids = new long[capacity];
+    this.xs = new int[capacity];
+    this.ys = new int[capacity];
+  }
+
+  /**
+   * 
+   * @return the number of points in this block
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int capacity() {
+    return ids.length;
+  }
+
+  /**
+   * 
+   * @return the ids of the points, valid up to {@link #size()}
+   */
+  public long[] ids() {
+    return ids;
+  }
+
+  /**
+   * 
+   * @return the x coordinates of the points, valid up to {@link #size()}
+   */
+  public int[] xs() {
+    return xs;
+  }
+
+  /**
+   * 
+   * @return the y coordinates of the points, valid up to {@link #size()}
+   */
+  public int[] ys() {
+    return ys;
+  }
+
+  public long id(int i) {
+    checkElementIndex(i, size);
+    return ids[i];
+  }
+
+  public int x(int i) {
+    checkElementIndex(i, size);
+    return xs[i];
+  }
+
+  public int y(int i) {
+    checkElementIndex(i, size);
+    return ys[i];
+  }
+
+  /**
+   * 
+   * @param i
+   * @return a new point of the i-th entry
+   */
+  public Point get(int i) {
+    checkElementIndex(i, size);
+    return new Point(ids[i], xs[i], ys[i]);
+  }
+
+  /**
+   * 
+   * @return a list view of this block, which creates points as they are read
+   */
+  public List<Point> asList() {
+    return new PointList();
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  boolean isFull() {
+    return size >= ids.length;
+  }
+
+  void add(long id, int x, int y) {
+    if (size == ids.length) {
+      grow(size + 1);
+    }
+    ids[size] = id;
+    xs[size] = x;
+    ys[size] = y;
+    size++;
+  }
+
+  /**
+   * appends the points of another block.
+   * 
+   * @param that
+   */
+  void addAll(PointBlock that) {
+    if (size + that.size > ids.length) {
+      grow(size + that.size);
+    }
+    System.arraycopy(that.ids, 0, ids, size, that.size);
+    System.arraycopy(that.xs, 0, xs, size, that.size);
+    System.arraycopy(that.ys, 0, ys, size, that.size);
+    size += that.size;
+  }
+
+  /**
+   * moves the i-th point to the j-th entry, for compacting in place.
+   */
+  void move(int i, int j) {
+    ids[j] = ids[i];
+    xs[j] = xs[i];
+    ys[j] = ys[i];
+  }
+
+  /**
+   * drops the points after the first newSize ones.
+   */
+  void truncate(int newSize) {
+    checkArgument(0 <= newSize && newSize <= size);
+    size = newSize;
+  }
+
+  private void grow(int minCapacity) {
+    int capacity = Math.max(minCapacity, ids.length + (ids.length >> 1));
+    ids = Arrays.copyOf(ids, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+  }
+
+  private class PointList extends AbstractList<Point> implements RandomAccess {
+
+    @Override
+    public Point get(int index) {
+      return PointBlock.this.get(index);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * PointFormat
+ * 
+ * PointFormat encodes points into cells of the data table, whose row key is
+ * the Z-order value of the point. The version of a table is recorded in its
+ * index table, and tables without a version are of version 1.
+ * <ul>
+ * <li>version 1: the qualifier is the id as an 8-byte long, and the value is
+ * x and y as 4-byte ints.
+ * <li>version 2: the qualifier is the id as a zig-zag varint, and the value is
+ * a single marker byte. Coordinates are decoded from the row key. The value is
+ * not empty so that checkAndDelete can tell a stored point from a missing one.
+ * </ul>
+ * 
+ * @author shoji
+ * 
+ */
+abstract class PointFormat {
+
+  static final int VERSION_1 = 1;
+
+  static final int VERSION_2 = 2;
+
+  static final int CURRENT_VERSION = VERSION_2;
+
+  static final byte[] MARKER = new byte[] { 1 };
+
+  static final PointFormat V1 = new PointFormat(VERSION_1) {
+
+    @Override
+    byte[] toQualifier(long id) {
+      return Bytes.toBytes(id);
+    }
+
+    @Override
+    long toId(byte[] buffer, int offset, int length) {
+      return Bytes.toLong(buffer, offset, length);
+    }
+
+    @Override
+    byte[] toValue(Point p) {
+      byte[] value = new byte[2 * Bytes.SIZEOF_INT];
+      Bytes.putInt(value, 0, p.x);
+      Bytes.putInt(value, Bytes.SIZEOF_INT, p.y);
+      return value;
+    }
+
+    @Override
+    boolean storesCoordinates() {
+      return true;
+    }
+
+    @Override
+    void addPoints(Result result, PointBlock found) {
+      if (result.isEmpty()) {
+        return;
+      }
+      for (KeyValue kv : result.raw()) {
+        if (!kv.matchingFamily(Bucket.FAMILY)) {
+          continue;
+        }
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getValueOffset();
+        found.add(Bytes.toLong(buffer, kv.getQualifierOffset(), kv
+            .getQualifierLength()), Bytes.toInt(buffer, offset), Bytes.toInt(
+            buffer, offset + Bytes.SIZEOF_INT));
+      }
+    }
+
+  };
+
+  static final PointFormat V2 = new PointFormat(VERSION_2) {
+
+    @Override
+    byte[] toQualifier(long id) {
+      return toVarint(id);
+    }
+
+    @Override
+    long toId(byte[] buffer, int offset, int length) {
+      return fromVarint(buffer, offset, length);
+    }
+
+    @Override
+    byte[] toValue(Point p) {
+      return MARKER;
+    }
+
+    @Override
+    boolean storesCoordinates() {
+      return false;
+    }
+
+    @Override
+    void addPoints(Result result, PointBlock found) {
+      if (result.isEmpty()) {
+        return;
+      }
+      KeyValue[] kvs = result.raw();
+      // all cells of a row share the coordinates of its key
+      long z = Bytes.toLong(kvs[0].getBuffer(), kvs[0].getRowOffset());
+      int x = ZOrder.unzipX(z);
+      int y = ZOrder.unzipY(z);
+      for (KeyValue kv : kvs) {
+        if (kv.matchingFamily(Bucket.FAMILY)) {
+          found.add(fromVarint(kv.getBuffer(), kv.getQualifierOffset(), kv
+              .getQualifierLength()), x, y);
+        }
+      }
+    }
+
+  };
+
+  private final int version;
+
+  private PointFormat(int version) {
+    this.version = version;
+  }
+
+  /**
+   * 
+   * @param version
+   * @return the format of the version
+   * @throws IllegalArgumentException
+   *           if the version is unknown
+   */
+  static PointFormat of(int version) {
+    switch (version) {
+    case VERSION_1:
+      return V1;
+    case VERSION_2:
+      return V2;
+    default:
+      throw new IllegalArgumentException("unknown format version: " + version);
+    }
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  abstract byte[] toQualifier(long id);
+
+  long toId(byte[] qualifier) {
+    return toId(qualifier, 0, qualifier.length);
+  }
+
+  /**
+   * 
+   * @param buffer
+   * @param offset
+   *          the offset of a qualifier in the buffer
+   * @param length
+   *          the length of the qualifier
+   * @return the id encoded in the qualifier
+   */
+  abstract long toId(byte[] buffer, int offset, int length);
+
+  /**
+   * 
+   * @param p
+   * @return the cell value of a 2D point
+   */
+  abstract byte[] toValue(Point p);
+
+  /**
+   * 
+   * @return true if cell values hold the coordinates of points
+   */
+  abstract boolean storesCoordinates();
+
+  /**
+   * decodes 2D points stored in a row. Ids and coordinates are read in place
+   * from the buffers of the cells, without copying qualifiers or values.
+   * 
+   * @param result
+   *          a row of the data table
+   * @param found
+   *          receives the points of the row
+   */
+  abstract void addPoints(Result result, PointBlock found);
+
+  /*
+   * zig-zag varint, so that small negative ids are short as well
+   */
+  static byte[] toVarint(long v) {
+    long zigzag = (v << 1) ^ (v >> 63);
+    int length = 1;
+    for (long rest = zigzag >>> 7; rest != 0; rest >>>= 7) {
+      length++;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length - 1; i++) {
+      bytes[i] = (byte) ((zigzag & 0x7F) | 0x80);
+      zigzag >>>= 7;
+    }
+    bytes[length - 1] = (byte) zigzag;
+    return bytes;
+  }
+
+  static long fromVarint(byte[] bytes) {
+    return fromVarint(bytes, 0, bytes.length);
+  }
+
+  static long fromVarint(byte[] buffer, int offset, int length) {
+    long zigzag = 0L;
+    for (int i = 0; i < length; i++) {
+      zigzag |= (long) (buffer[offset + i] & 0x7F) << (7 * i);
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+}
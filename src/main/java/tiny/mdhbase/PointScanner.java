@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * PointScanner streams points from underlying HBase scanners as they are
+ * consumed, in the manner of ResultScanner. Scanners must be closed.
+ * 
+ * @author shoji
+ * 
+ */
+public interface PointScanner extends Closeable, Iterable<Point> {
+
+  /**
+   * 
+   * @return the next point, or null if the scanner is exhausted
+   * @throws IOException
+   */
+  Point next() throws IOException;
+
+  /**
+   * closes the scanner and releases the underlying HBase scanners.
+   */
+  @Override
+  void close();
+}
@@ -15,8 +15,6 @@
  */
 package tiny.mdhbase;
 
-import static com.google.common.base.Preconditions.checkArgument;
-
 /**
  * @author shoji
  * 
@@ -33,8 +31,11 @@ public class Range {
    *          inclusive
    */
   public Range(int min, int max) {
-    checkArgument(min <= max, "min=%s must not be greater than max=%s", min,
-        max);
+    if (min > max) {
+      // checked without varargs, which would box min and max on every call
+      throw new IllegalArgumentException(String.format(
+          "min=%s must not be greater than max=%s", min, max));
+    }
     this.min = min;
     this.max = max;
   }
@@ -43,6 +44,15 @@ public class Range {
     return (min <= i) && (i <= max);
   }
 
+  /**
+   * 
+   * @param that
+   * @return true if that range lies entirely within this range
+   */
+  public boolean include(Range that) {
+    return (this.min <= that.min) && (that.max <= this.max);
+  }
+
   public boolean intersect(Range that) {
     return (this.min <= that.max) && (that.min <= this.max);
   }
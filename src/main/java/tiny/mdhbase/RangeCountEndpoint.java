@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * RangeCountEndpoint
+ * 
+ * RangeCountEndpoint is a region server side implementation of
+ * {@link RangeCountProtocol}. It scans the region with {@link RangeFilter}, so
+ * points are counted with the same predicate as range queries. The endpoint is
+ * registered on the data table when {@link Index} creates it. Points packed
+ * into chunks are counted from the chunks, see {@link BlockReader}.
+ * 
+ * @author shoji
+ * 
+ */
+public class RangeCountEndpoint extends BaseEndpointCoprocessor implements
+    RangeCountProtocol {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.RangeCountProtocol#count(byte[][], byte[][], int, int,
+   * int, int)
+   */
+  @Override
+  public long count(byte[][] startRows, byte[][] stopRows, int xmin, int xmax,
+      int ymin, int ymax) throws IOException {
+    HRegion region = ((RegionCoprocessorEnvironment) getEnvironment())
+        .getRegion();
+    byte[] regionStart = region.getStartKey();
+    byte[] regionEnd = region.getEndKey();
+    Range rx = new Range(xmin, xmax);
+    Range ry = new Range(ymin, ymax);
+
+    long count = 0L;
+    for (int i = 0; i < startRows.length; i++) {
+      byte[] startRow = startRows[i];
+      byte[] stopRow = stopRows[i];
+      if (regionEnd.length > 0 && Bytes.compareTo(startRow, regionEnd) >= 0) {
+        continue;
+      }
+      if (Bytes.compareTo(stopRow, regionStart) <= 0) {
+        continue;
+      }
+      // clip the row range to the region
+      if (Bytes.compareTo(startRow, regionStart) < 0) {
+        startRow = regionStart;
+      }
+      if (regionEnd.length > 0 && Bytes.compareTo(stopRow, regionEnd) > 0) {
+        stopRow = regionEnd;
+      }
+      count += count(region, startRow, stopRow, startRows[i], stopRows[i], rx,
+          ry);
+    }
+    return count;
+  }
+
+  /*
+   * counts the points in a row range clipped to the region. A block of packed
+   * points covers its whole bucket, so it is read with the bounds of the
+   * bucket.
+   */
+  private long count(HRegion region, byte[] startRow, byte[] stopRow,
+      byte[] bucketStart, byte[] bucketStop, Range rx, Range ry)
+      throws IOException {
+    Scan scan = new Scan(startRow, stopRow);
+    scan.addFamily(Bucket.FAMILY);
+    BlockReader reader = null;
+    if (region.getTableDesc().hasFamily(PackedBlock.FAMILY)) {
+      // the row range starts at the bucket key, see Bucket#rowRange
+      scan.addFamily(PackedBlock.FAMILY);
+      reader = new BlockReader(Bytes.toLong(bucketStart), Bytes
+          .toLong(bucketStop) - 1, ZOrder.zip(rx.min, ry.min), ZOrder.zip(
+              rx.max, ry.max));
+    }
+    scan.setFilter(new RangeFilter(rx, ry));
+    InternalScanner scanner = region.getScanner(scan);
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    long count = 0L;
+    try {
+      boolean more;
+      do {
+        more = scanner.next(kvs);
+        if (reader == null) {
+          count += kvs.size();
+        } else {
+          for (KeyValue kv : kvs) {
+            if (kv.matchingFamily(PackedBlock.FAMILY)) {
+              count += reader.read(kv);
+            } else if (!reader.isPacked(kv)) {
+              count++;
+            }
+          }
+        }
+        kvs.clear();
+      } while (more);
+    } finally {
+      scanner.close();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * RangeCountProtocol counts points within a query region on region servers,
+ * so that no point is shipped to the client.
+ * 
+ * @author shoji
+ * 
+ */
+public interface RangeCountProtocol extends CoprocessorProtocol {
+
+  /**
+   * counts points within the query region in the given row ranges of a region.
+   * Row ranges outside the region are ignored.
+   * 
+   * @param startRows
+   *          inclusive start rows of the row ranges to scan
+   * @param stopRows
+   *          exclusive stop rows of the row ranges to scan
+   * @param xmin
+   * @param xmax
+   * @param ymin
+   * @param ymax
+   * @return the number of points within the query region
+   * @throws IOException
+   */
+  long count(byte[][] startRows, byte[][] stopRows, int xmin, int xmax,
+      int ymin, int ymax) throws IOException;
+}
@@ -24,6 +24,18 @@ import org.apache.hadoop.hbase.filter.FilterBase;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
+ * RangeFilter
+ * 
+ * RangeFilter filters points within a query region. A row key is the Z-order
+ * value of a point, so the filter evaluates row keys without decoding values.
+ * On a row out of the query region, the filter makes the scanner seek to the
+ * next Z-order value within the region, which is computed by
+ * {@link ZOrder#bigmin(long, long, long)}, instead of visiting every row in
+ * between.
+ * 
+ * Chunks of packed buckets, see {@link PackedBlock}, are kept if their key
+ * intervals reach into the query region, which is read from their headers.
+ * 
  * @author shoji
  * 
  */
@@ -36,9 +48,25 @@ public class RangeFilter extends FilterBase {
   private Range rx;
   private Range ry;
 
+  // Z-order values of the corners of the query region
+  private long zmin;
+  private long zmax;
+
+  // the row to seek to, or null if the current row is in the query region
+  private byte[] nextRow = null;
+
+  // true if no row is left in the query region
+  private boolean done = false;
+
   public RangeFilter(Range rx, Range ry) {
+    setRanges(rx, ry);
+  }
+
+  private void setRanges(Range rx, Range ry) {
     this.rx = rx;
     this.ry = ry;
+    this.zmin = ZOrder.zip(rx.min, ry.min);
+    this.zmax = ZOrder.zip(rx.max, ry.max);
   }
 
   /*
@@ -53,8 +81,7 @@ public class RangeFilter extends FilterBase {
     int ymin = in.readInt();
     int ymax = in.readInt();
 
-    this.rx = new Range(xmin, xmax);
-    this.ry = new Range(ymin, ymax);
+    setRanges(new Range(xmin, xmax), new Range(ymin, ymax));
   }
 
   /*
@@ -70,6 +97,29 @@ public class RangeFilter extends FilterBase {
     out.writeInt(ry.max);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.hbase.filter.FilterBase#filterRowKey(byte[], int,
+   * int)
+   */
+  @Override
+  public boolean filterRowKey(byte[] buffer, int offset, int length) {
+    long z = Bytes.toLong(buffer, offset);
+    if (ZOrder.inBox(z, zmin, zmax)) {
+      nextRow = null;
+      return false;
+    }
+    long next = ZOrder.bigmin(z, zmin, zmax);
+    if (next == -1L) {
+      done = true;
+      return true;
+    }
+    // cells of this row are passed to filterKeyValue, which seeks.
+    nextRow = Bytes.toBytes(next);
+    return false;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -79,14 +129,42 @@ public class RangeFilter extends FilterBase {
    */
   @Override
   public ReturnCode filterKeyValue(KeyValue kv) {
-    byte[] value = kv.getValue();
-    int x = Bytes.toInt(value, 0);
-    int y = Bytes.toInt(value, 4);
-    if (rx.include(x) && ry.include(y)) {
+    if (kv.matchingFamily(PackedBlock.FAMILY)) {
+      // the chunks of a row are not bound to its key
+      if (kv.getQualifierLength() == 0
+          || PackedBlock.intersects(kv.getBuffer(), kv.getValueOffset(), zmin,
+              zmax)) {
+        return ReturnCode.INCLUDE;
+      }
+      return ReturnCode.SKIP;
+    }
+    if (nextRow == null) {
       return ReturnCode.INCLUDE;
     } else {
-      return ReturnCode.NEXT_ROW;
+      return ReturnCode.SEEK_NEXT_USING_HINT;
     }
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.hadoop.hbase.filter.FilterBase#getNextKeyHint(org.apache.hadoop
+   * .hbase.KeyValue)
+   */
+  @Override
+  public KeyValue getNextKeyHint(KeyValue currentKV) {
+    return KeyValue.createFirstOnRow(nextRow);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.apache.hadoop.hbase.filter.FilterBase#filterAllRemaining()
+   */
+  @Override
+  public boolean filterAllRemaining() {
+    return done;
+  }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * RegionSplits
+ * 
+ * RegionSplits computes split keys to pre-split the data table into regions.
+ * Each split key is the start of the largest aligned sub-space near the
+ * desired boundary, so buckets up to that size never straddle two regions.
+ * 
+ * @author shoji
+ * 
+ */
+public final class RegionSplits {
+
+  private RegionSplits() {
+  }
+
+  /**
+   * splits the space into regions of about the same size.
+   * 
+   * @param regions
+   *          the number of regions
+   * @return split keys, empty if regions is 1 or less
+   */
+  public static byte[][] uniform(int regions) {
+    List<byte[]> splitKeys = new ArrayList<byte[]>();
+    if (regions > 1) {
+      long step = Index.END_KEY / regions;
+      for (int i = 1; i < regions; i++) {
+        long boundary = step * i;
+        splitKeys.add(Bytes.toBytes(alignedKey(boundary - step / 2,
+            boundary)));
+      }
+    }
+    return splitKeys.toArray(new byte[splitKeys.size()][]);
+  }
+
+  /**
+   * splits the space into regions which hold about the same number of points
+   * of the sample.
+   * 
+   * @param sample
+   * @param regions
+   *          the number of regions
+   * @return split keys. Fewer keys are returned if the sample is too skewed.
+   */
+  public static byte[][] sampled(Iterable<Point> sample, int regions) {
+    List<Long> keyList = new ArrayList<Long>();
+    for (Point p : sample) {
+      keyList.add(ZOrder.zip(p.x, p.y));
+    }
+    if (keyList.isEmpty()) {
+      return uniform(regions);
+    }
+    long[] keys = new long[keyList.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = keyList.get(i);
+    }
+    Arrays.sort(keys);
+
+    List<byte[]> splitKeys = new ArrayList<byte[]>();
+    long previous = 0L;
+    for (int i = 1; i < regions; i++) {
+      int quantile = (int) ((long) keys.length * i / regions);
+      int lower = Math.max(0, quantile - keys.length / (2 * regions));
+      long high = keys[quantile];
+      long low = Math.min(keys[lower], high - 1);
+      long key = alignedKey(Math.max(low, previous), high);
+      if (key > previous) {
+        splitKeys.add(Bytes.toBytes(key));
+        previous = key;
+      }
+    }
+    return splitKeys.toArray(new byte[splitKeys.size()][]);
+  }
+
+  /*
+   * returns the key in (low, high] with the most trailing zeros, namely the
+   * start of the largest aligned sub-space which begins in the interval.
+   */
+  static long alignedKey(long low, long high) {
+    for (int bits = 63; bits > 0; bits--) {
+      long key = high & (-1L << bits);
+      if (key > low) {
+        return key;
+      }
+    }
+    return high;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SplitPlanner
+ *
+ * SplitPlanner computes the final partition of an over-full bucket, so that a
+ * split writes every new bucket at once instead of halving the bucket level by
+ * level.
+ *
+ * A bucket is first partitioned by its counters. A cell which is still over the
+ * threshold when the counters run out is reported as over-full; the caller
+ * scans it once and partitions it again from the histogram of its row keys.
+ *
+ * Keys are 64-bit Z-order values of the row keys, and a cell is named after the
+ * common prefix naming scheme, as a pair of a key and its prefix length.
+ *
+ * @author shoji
+ *
+ */
+class SplitPlanner {
+
+  private static final int MAX_PREFIX_LENGTH = 64;
+
+  /**
+   * a cell of the partition, with the number of its points counted by the next
+   * depth bits of their keys.
+   */
+  static class Cell {
+    final long key;
+    final int prefixLength;
+    final long[] counts;
+    final int depth;
+
+    Cell(long key, int prefixLength, long[] counts, int depth) {
+      this.key = key;
+      this.prefixLength = prefixLength;
+      this.counts = counts;
+      this.depth = depth;
+    }
+
+    long size() {
+      long size = 0L;
+      for (long count : counts) {
+        size += count;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * row keys in ascending order and the number of points at each key.
+   */
+  static class Histogram {
+    private long[] keys = new long[1024];
+    private long[] counts = new long[1024];
+    private int size = 0;
+
+    void add(long key, long count) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      keys[size] = key;
+      counts[size] = count;
+      size++;
+    }
+  }
+
+  private final long splitThreshold;
+
+  /**
+   *
+   * @param splitThreshold
+   *          the maximum number of points in a bucket
+   */
+  SplitPlanner(long splitThreshold) {
+    this.splitThreshold = splitThreshold;
+  }
+
+  /**
+   * partitions a cell by its counters.
+   *
+   * @param cell
+   * @param leaves
+   *          receives cells which need no further split
+   * @param overfull
+   *          receives cells over the threshold without counters left
+   */
+  void planFromCounters(Cell cell, List<Cell> leaves, List<Cell> overfull) {
+    if (cell.size() <= splitThreshold
+        || cell.prefixLength == MAX_PREFIX_LENGTH) {
+      leaves.add(cell);
+    } else if (cell.depth == 0) {
+      overfull.add(cell);
+    } else {
+      int half = cell.counts.length / 2;
+      int childLength = cell.prefixLength + 1;
+      planFromCounters(new Cell(cell.key, childLength, Arrays.copyOfRange(
+          cell.counts, 0, half), cell.depth - 1), leaves, overfull);
+      planFromCounters(new Cell(cell.key | bit(cell.prefixLength),
+          childLength, Arrays.copyOfRange(cell.counts, half,
+              cell.counts.length), cell.depth - 1), leaves, overfull);
+    }
+  }
+
+  /**
+   * partitions a cell by the histogram of all its row keys. Every resulting
+   * cell is under the threshold unless it cannot be split any more, and holds
+   * exact counters of the given depth, or less near the maximum prefix length.
+   *
+   * @param key
+   * @param prefixLength
+   * @param histogram
+   *          row keys of the cell
+   * @param depth
+   *          the counter depth of the resulting cells
+   * @param leaves
+   *          receives the resulting cells
+   */
+  void planFromHistogram(long key, int prefixLength, Histogram histogram,
+      int depth, List<Cell> leaves) {
+    long[] cumulative = new long[histogram.size + 1];
+    for (int i = 0; i < histogram.size; i++) {
+      cumulative[i + 1] = cumulative[i] + histogram.counts[i];
+    }
+    partition(key, prefixLength, histogram, cumulative, 0, histogram.size,
+        depth, leaves);
+  }
+
+  private void partition(long key, int prefixLength, Histogram histogram,
+      long[] cumulative, int from, int to, int depth, List<Cell> leaves) {
+    long size = cumulative[to] - cumulative[from];
+    if (size <= splitThreshold || prefixLength == MAX_PREFIX_LENGTH) {
+      int d = Math.min(depth, MAX_PREFIX_LENGTH - prefixLength);
+      long[] counts = new long[1 << d];
+      for (int i = from; i < to; i++) {
+        int sub = d == 0 ? 0 : (int) ((histogram.keys[i] - key) >>> (64
+            - prefixLength - d));
+        counts[sub] += histogram.counts[i];
+      }
+      leaves.add(new Cell(key, prefixLength, counts, d));
+      return;
+    }
+    long key1 = key | bit(prefixLength);
+    int mid = Arrays.binarySearch(histogram.keys, from, to, key1);
+    if (mid < 0) {
+      mid = -mid - 1;
+    }
+    partition(key, prefixLength + 1, histogram, cumulative, from, mid, depth,
+        leaves);
+    partition(key1, prefixLength + 1, histogram, cumulative, mid, to, depth,
+        leaves);
+  }
+
+  /**
+   * plans the bucket which starts at a boundary, from the sorted keys which
+   * follow the boundary. The bucket is the largest sub-space starting at the
+   * boundary which holds no more points than the threshold. Taking such
+   * buckets one after another from the first key of the space yields the same
+   * partition as inserting the keys and splitting over-full buckets.
+   * 
+   * @param start
+   *          the first key not covered by preceding buckets
+   * @param keys
+   *          keys from start on in ascending order. More keys than the
+   *          threshold are needed unless no key is left.
+   * @param from
+   *          inclusive
+   * @param to
+   *          exclusive
+   * @return the prefix length of the bucket
+   */
+  int planFromSortedKeys(long start, long[] keys, int from, int to) {
+    // the bucket must start at the boundary
+    int prefixLength = Math.max(Index.ROOT_PREFIX_LENGTH, MAX_PREFIX_LENGTH
+        - Long.numberOfTrailingZeros(start));
+    for (; prefixLength < MAX_PREFIX_LENGTH; prefixLength++) {
+      long last = ZOrder.lastKey(start, prefixLength);
+      int count = upperBound(keys, from, to, last) - from;
+      if (count <= splitThreshold) {
+        break;
+      }
+    }
+    return prefixLength;
+  }
+
+  /*
+   * the index of the first key greater than the given key
+   */
+  private static int upperBound(long[] keys, int from, int to, long key) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (keys[mid] <= key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * the bit at pos, 0 being the most significant bit
+   */
+  private static long bit(int pos) {
+    return 1L << (63 - pos);
+  }
+}
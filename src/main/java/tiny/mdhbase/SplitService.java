@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * SplitService
+ *
+ * SplitService runs bucket splits in background threads, so that an insertion
+ * which crosses the split threshold returns as soon as its point and the bucket
+ * size are written. Merges of underfull buckets requested by deletions run in
+ * the same threads. A request only names a bucket; whether the bucket is split
+ * or merged is decided by its sizes when the request runs.
+ *
+ * A request for a bucket which is already queued is ignored. A request for a
+ * bucket which is being split is deferred until the running split finishes.
+ * Each worker pauses for a configurable time after a split to throttle the
+ * load splits put on the cluster. With no worker threads, splits run inline in
+ * the requesting thread. Idle workers exit after a while, so an index which is
+ * only read holds no threads.
+ *
+ * @author shoji
+ *
+ */
+class SplitService implements Closeable {
+
+  private static final Log LOG = LogFactory.getLog(SplitService.class);
+
+  // milliseconds an idle worker waits for requests before it exits
+  private static final long IDLE_TIMEOUT = 60 * 1000L;
+
+  private final Index index;
+
+  private final ThreadPoolExecutor executor;
+
+  private final long pause;
+
+  private final Set<byte[]> queued = new TreeSet<byte[]>(
+      Bytes.BYTES_COMPARATOR);
+
+  private final Set<byte[]> running = new TreeSet<byte[]>(
+      Bytes.BYTES_COMPARATOR);
+
+  private final Set<byte[]> deferred = new TreeSet<byte[]>(
+      Bytes.BYTES_COMPARATOR);
+
+  /**
+   *
+   * @param index
+   * @param threads
+   *          the number of worker threads. 0 runs splits inline.
+   * @param pause
+   *          milliseconds a worker sleeps after each split
+   */
+  SplitService(Index index, int threads, long pause) {
+    this.index = index;
+    this.pause = pause;
+    if (threads > 0) {
+      this.executor = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT,
+          TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+          new DaemonThreadFactory("mdhbase-split"));
+      executor.allowCoreThreadTimeOut(true);
+    } else {
+      this.executor = null;
+    }
+  }
+
+  /**
+   * requests a split of the bucket.
+   *
+   * @param bucketKey
+   * @throws IOException
+   *           if the split runs inline and fails
+   */
+  void requestSplit(byte[] bucketKey) throws IOException {
+    if (executor == null) {
+      index.splitBucket(bucketKey);
+      return;
+    }
+    synchronized (this) {
+      if (running.contains(bucketKey)) {
+        deferred.add(bucketKey);
+      } else {
+        enqueue(bucketKey);
+      }
+    }
+  }
+
+  /**
+   * requests a merge of the bucket with its sibling.
+   *
+   * @param bucketKey
+   * @throws IOException
+   *           if the merge runs inline and fails
+   */
+  void requestMerge(byte[] bucketKey) throws IOException {
+    if (executor == null) {
+      index.mergeBucket(bucketKey);
+      return;
+    }
+    requestSplit(bucketKey);
+  }
+
+  /*
+   * must be called while holding the lock of this service.
+   */
+  private void enqueue(final byte[] bucketKey) {
+    if (!queued.add(bucketKey)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        split(bucketKey);
+      }
+
+    });
+  }
+
+  private void split(byte[] bucketKey) {
+    synchronized (this) {
+      queued.remove(bucketKey);
+      running.add(bucketKey);
+    }
+    try {
+      if (!index.splitBucket(bucketKey)) {
+        index.mergeBucket(bucketKey);
+      }
+    } catch (IOException e) {
+      LOG.warn("failed to split or merge bucket "
+          + Bytes.toStringBinary(bucketKey), e);
+    } finally {
+      synchronized (this) {
+        running.remove(bucketKey);
+        if (deferred.remove(bucketKey)) {
+          enqueue(bucketKey);
+        }
+      }
+    }
+    if (pause > 0) {
+      try {
+        Thread.sleep(pause);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   *
+   * @return the number of buckets waiting to be split or merged
+   */
+  synchronized int getQueueDepth() {
+    return queued.size();
+  }
+
+  /**
+   * waits for queued splits to finish, then stops the workers.
+   *
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    if (executor == null) {
+      return;
+    }
+    // splits may queue further splits of their children
+    while (true) {
+      synchronized (this) {
+        if (queued.isEmpty() && running.isEmpty()) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stat
+ * 
+ * Stat summarizes the values of a metric: the number of values, their total,
+ * minimum and maximum. Latencies are recorded in microseconds.
+ * 
+ * Values are also counted in a histogram of power-of-two buckets, from which
+ * percentiles are estimated. An estimate is the upper bound of the bucket
+ * which holds the percentile, clamped to the minimum and maximum, so it is
+ * less than twice the true value.
+ * 
+ * @author shoji
+ * 
+ */
+public class Stat implements StatMBean {
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+  // bucket 0 counts values up to 0, and bucket i values in [2^(i-1), 2^i)
+  private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+  /**
+   * records a value.
+   * 
+   * @param value
+   */
+  public void update(long value) {
+    count.incrementAndGet();
+    total.addAndGet(value);
+    buckets.incrementAndGet(bucketOf(value));
+    for (long current = min.get(); value < current; current = min.get()) {
+      if (min.compareAndSet(current, value)) {
+        break;
+      }
+    }
+    for (long current = max.get(); value > current; current = max.get()) {
+      if (max.compareAndSet(current, value)) {
+        break;
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#getCount()
+   */
+  @Override
+  public long getCount() {
+    return count.get();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#getTotal()
+   */
+  @Override
+  public long getTotal() {
+    return total.get();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#getMin()
+   */
+  @Override
+  public long getMin() {
+    return count.get() == 0 ? 0L : min.get();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#getMax()
+   */
+  @Override
+  public long getMax() {
+    return count.get() == 0 ? 0L : max.get();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#getMean()
+   */
+  @Override
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) total.get() / n;
+  }
+
+  /**
+   * estimates a percentile of the values.
+   * 
+   * @param percent
+   *          between 0 and 100
+   * @return the estimated value, or 0 if no value is recorded
+   */
+  public long getPercentile(double percent) {
+    long[] counts = new long[buckets.length()];
+    long n = 0L;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+    if (n == 0) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(percent / 100.0 * n));
+    int bucket = 0;
+    for (long seen = counts[0]; seen < rank; seen += counts[bucket]) {
+      bucket++;
+    }
+    return Math.max(getMin(), Math.min(upperBoundOf(bucket), getMax()));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#get50thPercentile()
+   */
+  @Override
+  public long get50thPercentile() {
+    return getPercentile(50.0);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#get95thPercentile()
+   */
+  @Override
+  public long get95thPercentile() {
+    return getPercentile(95.0);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see tiny.mdhbase.StatMBean#get99thPercentile()
+   */
+  @Override
+  public long get99thPercentile() {
+    return getPercentile(99.0);
+  }
+
+  static int bucketOf(long value) {
+    return value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+  }
+
+  static long upperBoundOf(int bucket) {
+    return bucket == Long.SIZE - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return String.format("count=%d, mean=%.1f, min=%d, max=%d, p50=%d, "
+        + "p95=%d, p99=%d", getCount(), getMean(), getMin(), getMax(),
+        get50thPercentile(), get95thPercentile(), get99thPercentile());
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+/**
+ * StatMBean
+ * 
+ * StatMBean publishes a {@link Stat} over JMX.
+ * 
+ * @author shoji
+ * 
+ */
+public interface StatMBean {
+
+  long getCount();
+
+  long getTotal();
+
+  long getMin();
+
+  long getMax();
+
+  double getMean();
+
+  long get50thPercentile();
+
+  long get95thPercentile();
+
+  long get99thPercentile();
+}
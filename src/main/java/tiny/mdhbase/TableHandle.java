@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+
+import com.google.common.io.Closeables;
+
+/**
+ * TableHandle
+ * 
+ * HTable is not thread-safe. TableHandle hands out one HTable instance per
+ * thread, so that background workers can share a table with the client. The
+ * instances of threads which exited are closed whenever a new one is opened,
+ * so pools whose idle workers exit do not leak tables.
+ * 
+ * @author shoji
+ * 
+ */
+class TableHandle implements Closeable {
+
+  private final Configuration config;
+
+  private final String tableName;
+
+  private final ThreadLocal<HTable> tables = new ThreadLocal<HTable>();
+
+  // instances by the threads they were opened for
+  private final Map<Thread, HTable> opened = new HashMap<Thread, HTable>();
+
+  TableHandle(Configuration config, String tableName) {
+    this.config = config;
+    this.tableName = tableName;
+  }
+
+  /**
+   * 
+   * @return the table instance of the calling thread
+   * @throws IOException
+   */
+  HTable get() throws IOException {
+    HTable table = tables.get();
+    if (table == null) {
+      table = new HTable(config, tableName);
+      tables.set(table);
+      synchronized (opened) {
+        closeExited();
+        opened.put(Thread.currentThread(), table);
+      }
+    }
+    return table;
+  }
+
+  /*
+   * closes the instances of threads which exited, flushing their write
+   * buffers. Must be called while holding the lock of opened.
+   */
+  private void closeExited() {
+    for (Iterator<Map.Entry<Thread, HTable>> i = opened.entrySet().iterator(); i
+        .hasNext();) {
+      Map.Entry<Thread, HTable> entry = i.next();
+      if (!entry.getKey().isAlive()) {
+        Closeables.closeQuietly(entry.getValue());
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * 
+   * @return the number of open table instances
+   */
+  int openCount() {
+    synchronized (opened) {
+      return opened.size();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (opened) {
+      for (HTable table : opened.values()) {
+        Closeables.closeQuietly(table);
+      }
+      opened.clear();
+    }
+  }
+}
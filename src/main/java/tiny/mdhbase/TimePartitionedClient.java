@@ -0,0 +1,620 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+
+import com.google.common.io.Closeables;
+
+/**
+ * TimePartitionedClient
+ * 
+ * TimePartitionedClient stores points in partitions of fixed time windows.
+ * Each partition is a pair of a data table and an index table, named
+ * [table]_t[start of the window], and is served by its own {@link Client}.
+ * Points are inserted into the partition of their timestamps, and queries only
+ * open the partitions whose windows overlap the queried time interval, so their
+ * cost depends on the interval rather than on the retained history. Queries
+ * resolve time by windows: every point of an overlapping window is a
+ * candidate. The clients of all partitions scan buckets on a single shared
+ * pool of tiny.mdhbase.query.threads threads.
+ * 
+ * Old partitions are dropped as whole tables, either explicitly or in the
+ * background when a new partition is created and the retention period is set.
+ * A dropped partition takes no more points, and its tables are deleted in the
+ * background once the queries of this client which use it finish. Queries of
+ * other clients on a dropped partition may fail. Points older than the
+ * retention period are rejected rather than stored in a new partition which
+ * the next drop would remove again.
+ * 
+ * @author shoji
+ * 
+ */
+public class TimePartitionedClient implements Closeable {
+
+  private static final Log LOG = LogFactory
+      .getLog(TimePartitionedClient.class);
+
+  /**
+   * milliseconds of the time window of a partition
+   */
+  public static final String WINDOW_KEY = "tiny.mdhbase.partition.window";
+
+  public static final long DEFAULT_WINDOW = 60 * 60 * 1000L;
+
+  /**
+   * milliseconds partitions are retained for, counted back from the end of the
+   * newest window. 0 retains all partitions.
+   */
+  public static final String RETENTION_KEY = "tiny.mdhbase.partition.retention";
+
+  public static final long DEFAULT_RETENTION = 0L;
+
+  /**
+   * milliseconds between reloads of the list of partitions, which may be
+   * created or dropped by other clients
+   */
+  public static final String REFRESH_INTERVAL_KEY =
+      "tiny.mdhbase.partition.refresh.interval";
+
+  public static final long DEFAULT_REFRESH_INTERVAL = 1000L;
+
+  private final Configuration config;
+
+  private final String tableName;
+
+  private final int splitThreshold;
+
+  private final long window;
+
+  private final long retention;
+
+  private final long refreshInterval;
+
+  private final Pattern partitionName;
+
+  private final HBaseAdmin admin;
+
+  // window starts of the partitions
+  private final NavigableSet<Long> partitions = new TreeSet<Long>();
+
+  // clients of the partitions opened so far
+  private final Map<Long, Partition> clients = new HashMap<Long, Partition>();
+
+  // window starts of dropped partitions whose tables are not deleted yet
+  private final Set<Long> dropping = new HashSet<Long>();
+
+  // drops partitions and deletes their tables
+  private final ExecutorService dropExecutor;
+
+  // scans buckets of all partitions
+  private final ExecutorService queryExecutor;
+
+  private long lastRefreshed = 0L;
+
+  public TimePartitionedClient(Configuration config, String tableName,
+      int splitThreshold) throws IOException {
+    this.config = config;
+    this.tableName = tableName;
+    this.splitThreshold = splitThreshold;
+    this.window = config.getLong(WINDOW_KEY, DEFAULT_WINDOW);
+    this.retention = config.getLong(RETENTION_KEY, DEFAULT_RETENTION);
+    this.refreshInterval = config.getLong(REFRESH_INTERVAL_KEY,
+        DEFAULT_REFRESH_INTERVAL);
+    if (window <= 0) {
+      throw new IllegalArgumentException("window must be positive: " + window);
+    }
+    this.partitionName = Pattern.compile(Pattern.quote(tableName)
+        + "_t(-?\\d+)");
+    this.admin = new HBaseAdmin(config);
+    int queryThreads = config.getInt(Client.QUERY_THREADS_KEY,
+        Client.DEFAULT_QUERY_THREADS);
+    this.queryExecutor = queryThreads > 0 ? Executors.newFixedThreadPool(
+        queryThreads, new DaemonThreadFactory("mdhbase-query")) : null;
+    this.dropExecutor = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("mdhbase-partition-drop"));
+  }
+
+  /**
+   * inserts a point into the partition of the timestamp.
+   * 
+   * @param p
+   * @param timestamp
+   *          milliseconds since the epoch
+   * @throws IOException
+   * @throws IllegalArgumentException
+   *           if the timestamp is older than the retention period
+   */
+  public void insert(Point p, long timestamp) throws IOException {
+    Partition partition = partitionFor(timestamp);
+    try {
+      partition.client.insert(p);
+    } finally {
+      partition.release();
+    }
+  }
+
+  /**
+   * inserts points of the same timestamp in batches.
+   * 
+   * @param points
+   * @param timestamp
+   *          milliseconds since the epoch
+   * @throws IOException
+   * @throws IllegalArgumentException
+   *           if the timestamp is older than the retention period
+   */
+  public void insertAll(Iterable<Point> points, long timestamp)
+      throws IOException {
+    Partition partition = partitionFor(timestamp);
+    try {
+      partition.client.insertAll(points);
+    } finally {
+      partition.release();
+    }
+  }
+
+  /**
+   * 
+   * @param rx
+   * @param ry
+   * @param from
+   *          the start of the time interval, inclusive
+   * @param to
+   *          the end of the time interval, inclusive
+   * @return points within the query region in the partitions overlapping the
+   *         time interval
+   * @throws IOException
+   */
+  public Iterable<Point> rangeQuery(Range rx, Range ry, long from, long to)
+      throws IOException {
+    List<Point> found = new ArrayList<Point>();
+    List<Partition> opened = partitions(from, to);
+    try {
+      for (Partition partition : opened) {
+        for (Point p : partition.client.rangeQuery(rx, ry)) {
+          found.add(p);
+        }
+      }
+    } finally {
+      release(opened);
+    }
+    return found;
+  }
+
+  /**
+   * 
+   * @param rx
+   * @param ry
+   * @param from
+   *          the start of the time interval, inclusive
+   * @param to
+   *          the end of the time interval, inclusive
+   * @return the number of points within the query region in the partitions
+   *         overlapping the time interval
+   * @throws IOException
+   */
+  public long rangeCount(Range rx, Range ry, long from, long to)
+      throws IOException {
+    long count = 0L;
+    List<Partition> opened = partitions(from, to);
+    try {
+      for (Partition partition : opened) {
+        count += partition.client.rangeCount(rx, ry);
+      }
+    } finally {
+      release(opened);
+    }
+    return count;
+  }
+
+  /**
+   * finds the k nearest points in the partitions overlapping the time
+   * interval. Points are streamed from every partition in order of distance,
+   * and merged until k points are found.
+   * 
+   * @param point
+   * @param k
+   * @param from
+   *          the start of the time interval, inclusive
+   * @param to
+   *          the end of the time interval, inclusive
+   * @return the nearest points in order of distance
+   * @throws IOException
+   */
+  public List<Point> nearestNeighbor(final Point point, int k, long from,
+      long to) throws IOException {
+    List<Point> results = new ArrayList<Point>();
+    if (k <= 0) {
+      return results;
+    }
+    List<PointScanner> scanners = new ArrayList<PointScanner>();
+    PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(11,
+        new Comparator<Candidate>() {
+
+          @Override
+          public int compare(Candidate o1, Candidate o2) {
+            return Double.compare(o1.distance, o2.distance);
+          }
+
+        });
+    List<Partition> opened = partitions(from, to);
+    try {
+      for (Partition partition : opened) {
+        PointScanner scanner = partition.client.nearestNeighbors(point);
+        scanners.add(scanner);
+        Point p = scanner.next();
+        if (p != null) {
+          candidates.add(new Candidate(p, point.distanceFrom(p), scanner));
+        }
+      }
+      while (results.size() < k && !candidates.isEmpty()) {
+        Candidate nearest = candidates.poll();
+        results.add(nearest.point);
+        Point p = nearest.scanner.next();
+        if (p != null) {
+          candidates.add(new Candidate(p, point.distanceFrom(p),
+              nearest.scanner));
+        }
+      }
+    } finally {
+      for (PointScanner scanner : scanners) {
+        scanner.close();
+      }
+      release(opened);
+    }
+    return results;
+  }
+
+  /**
+   * the nearest point not yet returned from a partition
+   */
+  private static class Candidate {
+    final Point point;
+    final double distance;
+    final PointScanner scanner;
+
+    Candidate(Point point, double distance, PointScanner scanner) {
+      this.point = point;
+      this.distance = distance;
+      this.scanner = scanner;
+    }
+  }
+
+  /*
+   * the client of a partition, shared by the queries which opened it. The
+   * client is closed when the partition is closed or dropped and the last
+   * query releases it. The tables of a dropped partition are deleted then.
+   */
+  private class Partition {
+    final long start;
+    final Client client;
+
+    // one reference is held while the partition is open
+    private int references = 1;
+
+    private boolean dropped = false;
+
+    /*
+     * a null client stands for a partition which was never opened
+     */
+    Partition(long start, Client client) {
+      this.start = start;
+      this.client = client;
+    }
+
+    synchronized Partition acquire() {
+      references++;
+      return this;
+    }
+
+    void release() {
+      boolean delete;
+      synchronized (this) {
+        if (--references > 0) {
+          return;
+        }
+        delete = dropped;
+      }
+      if (client != null) {
+        Closeables.closeQuietly(client);
+      }
+      if (delete) {
+        deleteTables(start);
+      }
+    }
+
+    /*
+     * releases the reference held while the partition was open
+     */
+    void drop() {
+      synchronized (this) {
+        dropped = true;
+      }
+      release();
+    }
+  }
+
+  private static void release(List<Partition> partitions) {
+    for (Partition partition : partitions) {
+      partition.release();
+    }
+  }
+
+  /**
+   * drops the partitions whose windows end at or before the timestamp. The
+   * partitions take no more points, and their tables are deleted in the
+   * background once the queries which use them finish.
+   * 
+   * @param timestamp
+   *          milliseconds since the epoch
+   * @throws IOException
+   */
+  public void dropBefore(long timestamp) throws IOException {
+    List<Partition> dropped = new ArrayList<Partition>();
+    synchronized (this) {
+      refresh();
+      for (Long start : new ArrayList<Long>(partitions.headSet(windowOf(
+          timestamp, window), false))) {
+        if (start + window > timestamp) {
+          continue;
+        }
+        Partition partition = clients.remove(start);
+        dropped.add(partition != null ? partition
+            : new Partition(start, null));
+        partitions.remove(start);
+        dropping.add(start);
+      }
+    }
+    for (Partition partition : dropped) {
+      partition.drop();
+    }
+  }
+
+  /*
+   * deletes the tables of a dropped partition in the background
+   */
+  private void deleteTables(final long start) {
+    try {
+      dropExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          String name = partitionName(start);
+          try {
+            HBaseAdmin admin = new HBaseAdmin(config);
+            try {
+              dropTable(admin, name + "_index");
+              dropTable(admin, name);
+            } finally {
+              Closeables.closeQuietly(admin);
+            }
+            LOG.info("dropped partition " + name);
+          } catch (IOException e) {
+            // the next drop retries
+            LOG.warn("failed to drop partition " + name, e);
+          } finally {
+            synchronized (TimePartitionedClient.this) {
+              dropping.remove(start);
+            }
+          }
+        }
+
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("closed before dropping partition " + partitionName(start));
+    }
+  }
+
+  private static void dropTable(HBaseAdmin admin, String name)
+      throws IOException {
+    if (admin.tableExists(name)) {
+      admin.disableTable(name);
+      admin.deleteTable(name);
+    }
+  }
+
+  /**
+   * 
+   * @return window starts of the partitions, in ascending order
+   * @throws IOException
+   */
+  public synchronized List<Long> getPartitions() throws IOException {
+    refresh();
+    return new ArrayList<Long>(partitions);
+  }
+
+  /*
+   * the start of the window of the timestamp, rounded down also for timestamps
+   * before the epoch.
+   */
+  static long windowOf(long timestamp, long window) {
+    long start = timestamp - timestamp % window;
+    return start > timestamp ? start - window : start;
+  }
+
+  /*
+   * partitions whose windows end at or before the horizon are dropped once the
+   * newest partition starts at the given window start.
+   */
+  static long horizonOf(long newest, long window, long retention) {
+    return newest + window - retention;
+  }
+
+  static boolean isExpired(long start, long newest, long window,
+      long retention) {
+    return retention > 0
+        && start + window <= horizonOf(newest, window, retention);
+  }
+
+  private String partitionName(long start) {
+    return String.format("%s_t%d", tableName, start);
+  }
+
+  /*
+   * opens the partition of the timestamp, creating it if it does not exist.
+   * The partition must be released.
+   */
+  private synchronized Partition partitionFor(long timestamp)
+      throws IOException {
+    refreshIfDue();
+    long start = windowOf(timestamp, window);
+    if (!partitions.isEmpty()
+        && isExpired(start, partitions.last(), window, retention)) {
+      throw new IllegalArgumentException("timestamp " + timestamp
+          + " is older than the retention period");
+    }
+    if (dropping.contains(start)) {
+      throw new IllegalArgumentException("the partition of timestamp "
+          + timestamp + " is being dropped");
+    }
+    Partition partition = clients.get(start);
+    if (partition == null) {
+      partition = open(start);
+      if (partitions.add(start) && retention > 0
+          && start == partitions.last()) {
+        dropInBackground(horizonOf(start, window, retention));
+      }
+    }
+    return partition.acquire();
+  }
+
+  /*
+   * opens the partitions overlapping the time interval. The partitions must be
+   * released.
+   */
+  private synchronized List<Partition> partitions(long from, long to)
+      throws IOException {
+    refreshIfDue();
+    List<Partition> opened = new ArrayList<Partition>();
+    if (from > to) {
+      return opened;
+    }
+    try {
+      for (Long start : partitions.subSet(windowOf(from, window), true,
+          windowOf(to, window), true)) {
+        Partition partition = clients.get(start);
+        if (partition == null) {
+          partition = open(start);
+        }
+        opened.add(partition.acquire());
+      }
+    } catch (IOException e) {
+      release(opened);
+      throw e;
+    }
+    return opened;
+  }
+
+  private void dropInBackground(final long horizon) {
+    try {
+      dropExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            dropBefore(horizon);
+          } catch (IOException e) {
+            LOG.warn("failed to drop partitions before " + horizon, e);
+          }
+        }
+
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("closed before dropping partitions before " + horizon);
+    }
+  }
+
+  private Partition open(long start) throws IOException {
+    Partition partition = new Partition(start, new Client(config,
+        partitionName(start), splitThreshold, RegionSplits.uniform(config
+            .getInt(Index.PRESPLIT_REGIONS_KEY,
+                Index.DEFAULT_PRESPLIT_REGIONS)), queryExecutor));
+    clients.put(start, partition);
+    return partition;
+  }
+
+  private void refreshIfDue() throws IOException {
+    if (System.currentTimeMillis() - lastRefreshed >= refreshInterval) {
+      refresh();
+    }
+  }
+
+  /*
+   * reloads the partitions from the table names, and closes clients of
+   * partitions dropped by other clients. Partitions which are being dropped
+   * are left out.
+   */
+  private void refresh() throws IOException {
+    NavigableSet<Long> found = new TreeSet<Long>();
+    for (HTableDescriptor table : admin.listTables()) {
+      Matcher matcher = partitionName.matcher(table.getNameAsString());
+      if (matcher.matches()) {
+        found.add(Long.parseLong(matcher.group(1)));
+      }
+    }
+    found.removeAll(dropping);
+    for (Long start : new ArrayList<Long>(clients.keySet())) {
+      if (!found.contains(start)) {
+        clients.remove(start).release();
+      }
+    }
+    partitions.clear();
+    partitions.addAll(found);
+    lastRefreshed = System.currentTimeMillis();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    for (Partition partition : clients.values()) {
+      partition.release();
+    }
+    clients.clear();
+    if (queryExecutor != null) {
+      queryExecutor.shutdownNow();
+    }
+    // partitions being dropped are still deleted
+    dropExecutor.shutdown();
+    admin.close();
+  }
+}
@@ -30,20 +30,7 @@ public class Utils {
   }
 
   public static byte[] bitwiseZip(int x, int y) {
-    byte[] ret = new byte[8];
-    int xh = makeGap(x);
-    int xl = makeGap(x << 16);
-    int yh = makeGap(y) >>> 1;
-    int yl = makeGap(y << 16) >>> 1;
-
-    int zh = xh | yh;
-    int zl = xl | yl;
-
-    byte[] rh = Bytes.toBytes(zh);
-    byte[] rl = Bytes.toBytes(zl);
-    System.arraycopy(rh, 0, ret, 0, 4);
-    System.arraycopy(rl, 0, ret, 4, 4);
-    return ret;
+    return Bytes.toBytes(ZOrder.zip(x, y));
   }
 
   private static final int[] MASKS = new int[] { 0xFFFF0000, 0xFF00FF00,
@@ -59,17 +46,8 @@ public class Utils {
   }
 
   public static int[] bitwiseUnzip(byte[] bs) {
-    int zh = Bytes.toInt(bs, 0);
-    int zl = Bytes.toInt(bs, 4);
-
-    int xh = elimGap(zh);
-    int yh = elimGap(zh << 1);
-    int xl = elimGap(zl) >>> 16;
-    int yl = elimGap(zl << 1) >>> 16;
-
-    int x = xh | xl;
-    int y = yh | yl;
-    return new int[] { x, y };
+    long z = Bytes.toLong(bs);
+    return new int[] { ZOrder.unzipX(z), ZOrder.unzipY(z) };
   }
 
   public static int elimGap(int x) {
@@ -158,6 +136,31 @@ public class Utils {
     return ret;
   }
 
+  /**
+   * reads bits of a key as an unsigned integer. Bits beyond the end of the key
+   * are read as 0s.
+   * 
+   * @param key
+   * @param pos
+   *          position of the first bit, 0 being the most significant bit
+   * @param n
+   *          the number of bits to read, at most 31
+   * @return
+   */
+  public static int getBits(byte[] key, int pos, int n) {
+    checkArgument(pos >= 0);
+    checkArgument(0 <= n && n < 32);
+    int ret = 0;
+    for (int i = pos; i < pos + n; i++) {
+      int bit = 0;
+      if (i < key.length * 8) {
+        bit = (key[i / 8] >>> (7 - i % 8)) & 1;
+      }
+      ret = (ret << 1) | bit;
+    }
+    return ret;
+  }
+
   public static String toString(byte[] key, int prefixLength) {
     StringBuilder buf = new StringBuilder();
     int d = (prefixLength - 1) / 8;
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+/**
+ * ZOrder
+ * 
+ * ZOrder computes Z-order values of 64-bit row keys, in which bits of x and y
+ * are interleaved as [x0,y0,x1,y1,..,x31,y31], and jumps over them. Values are
+ * handled as primitive longs, and converted to byte arrays only when they are
+ * passed to HBase.
+ * 
+ * A query box [(xmin,ymin), (xmax,ymax)] is given by the Z-order values of its
+ * lower and upper corners, zmin and zmax. Z-order values between zmin and zmax
+ * are not always in the box; {@link #bigmin(long, long, long)} skips the values
+ * out of the box, after H. Tropf and H. Herzog, "Multidimensional Range Search
+ * in Dynamically Balanced Trees", 1981.
+ * 
+ * @author shoji
+ * 
+ */
+class ZOrder {
+
+  /*
+   * bits of x and y
+   */
+  private static final long MASK_X = 0xAAAAAAAAAAAAAAAAL;
+  private static final long MASK_Y = 0x5555555555555555L;
+
+  private ZOrder() {
+
+  }
+
+  /**
+   * interleaves bits of x and y.
+   * 
+   * @param x
+   * @param y
+   * @return the Z-order value of (x,y)
+   */
+  static long zip(int x, int y) {
+    return (spread(x) << 1) | spread(y);
+  }
+
+  /**
+   * 
+   * @param z
+   * @return x of the Z-order value
+   */
+  static int unzipX(long z) {
+    return compact(z >>> 1);
+  }
+
+  /**
+   * 
+   * @param z
+   * @return y of the Z-order value
+   */
+  static int unzipY(long z) {
+    return compact(z);
+  }
+
+  /**
+   * 
+   * @param key
+   * @param prefixLength
+   * @return the last Z-order value of sub-space [key, prefixLength]. ex.
+   *         [010*****] -> [01011111]
+   */
+  static long lastKey(long key, int prefixLength) {
+    return prefixLength == 64 ? key : key | (-1L >>> prefixLength);
+  }
+
+  /*
+   * spreads 32 bits to the even positions of 64 bits. ex. [abcd] ->
+   * [0a0b0c0d]
+   */
+  private static long spread(int v) {
+    long x = v & 0xFFFFFFFFL;
+    x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+    x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+    x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    x = (x | (x << 2)) & 0x3333333333333333L;
+    x = (x | (x << 1)) & 0x5555555555555555L;
+    return x;
+  }
+
+  /*
+   * the inverse of spread. bits at the odd positions are ignored.
+   */
+  private static int compact(long z) {
+    long x = z & 0x5555555555555555L;
+    x = (x | (x >>> 1)) & 0x3333333333333333L;
+    x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+    x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+    x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+    x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+    return (int) x;
+  }
+
+  /**
+   * 
+   * @param z
+   * @param zmin
+   *          the Z-order value of the lower corner of the box
+   * @param zmax
+   *          the Z-order value of the upper corner of the box
+   * @return true if z is in the box
+   */
+  static boolean inBox(long z, long zmin, long zmax) {
+    return inRange(z & MASK_X, zmin & MASK_X, zmax & MASK_X)
+        && inRange(z & MASK_Y, zmin & MASK_Y, zmax & MASK_Y);
+  }
+
+  /**
+   * computes the smallest Z-order value in the box which is not less than z.
+   * 
+   * @param z
+   * @param zmin
+   *          the Z-order value of the lower corner of the box
+   * @param zmax
+   *          the Z-order value of the upper corner of the box
+   * @return the smallest Z-order value in the box which is not less than z, or
+   *         -1 if there is no such value
+   */
+  static long bigmin(long z, long zmin, long zmax) {
+    if (lessThan(z, zmin)) {
+      return zmin;
+    }
+    if (lessThan(zmax, z)) {
+      return -1L;
+    }
+    if (inBox(z, zmin, zmax)) {
+      return z;
+    }
+    long bigmin = -1L;
+    long min = zmin;
+    long max = zmax;
+    for (int pos = 63; pos >= 0; pos--) {
+      long bit = 1L << pos;
+      // lower bits of the same dimension
+      long lower = (bit - 1) & ((pos & 1) == 1 ? MASK_X : MASK_Y);
+      boolean zb = (z & bit) != 0;
+      boolean minb = (min & bit) != 0;
+      boolean maxb = (max & bit) != 0;
+      if (!zb && !minb && maxb) {
+        // the box straddles this bit. the upper half is the candidate.
+        bigmin = (min | bit) & ~lower;
+        max = (max & ~bit) | lower;
+      } else if (!zb && minb && maxb) {
+        return min;
+      } else if (zb && !minb && !maxb) {
+        return bigmin;
+      } else if (zb && !minb && maxb) {
+        min = (min | bit) & ~lower;
+      }
+    }
+    return bigmin;
+  }
+
+  private static boolean inRange(long z, long min, long max) {
+    return !lessThan(z, min) && !lessThan(max, z);
+  }
+
+  /*
+   * unsigned comparison
+   */
+  private static boolean lessThan(long a, long b) {
+    return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+  }
+}
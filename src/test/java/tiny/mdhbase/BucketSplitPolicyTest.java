@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class BucketSplitPolicyTest {
+
+  private final NavigableMap<byte[], Result> index =
+      new TreeMap<byte[], Result>(Bytes.BYTES_COMPARATOR);
+
+  private final BucketSplitPolicy.IndexRows rows =
+      new BucketSplitPolicy.IndexRows() {
+
+        @Override
+        public Result rowOrBefore(byte[] row) throws IOException {
+          Map.Entry<byte[], Result> entry = index.floorEntry(row);
+          return entry == null ? null : entry.getValue();
+        }
+
+        @Override
+        public Result rowOrAfter(byte[] row, byte[] stopRow)
+            throws IOException {
+          Map.Entry<byte[], Result> entry = index.ceilingEntry(row);
+          if (entry == null
+              || (stopRow.length > 0 && Bytes.compareTo(entry.getKey(),
+                  stopRow) >= 0)) {
+            return null;
+          }
+          return entry.getValue();
+        }
+
+      };
+
+  private void addBucket(long key, int prefixLength) {
+    byte[] row = Bytes.toBytes(key);
+    index.put(row, new Result(new KeyValue[] {
+        new KeyValue(row, Index.FAMILY_INFO, Index.COLUMN_BUCKET_SIZE, Bytes
+            .toBytes(1L)),
+        new KeyValue(row, Index.FAMILY_INFO, Index.COLUMN_PREFIX_LENGTH,
+            Bytes.toBytes(prefixLength)) }));
+  }
+
+  // counters left over by a merge
+  private void addOrphan(long key) {
+    byte[] row = Bytes.toBytes(key);
+    index.put(row, new Result(new KeyValue[] { new KeyValue(row,
+        Index.FAMILY_INFO, Index.COLUMN_BUCKET_SIZE, Bytes.toBytes(1L)) }));
+  }
+
+  private Long snap(long splitPoint, long startKey, long endKey)
+      throws IOException {
+    byte[] key = BucketSplitPolicy.snapToBucket(rows, Bytes
+        .toBytes(splitPoint), Bytes.toBytes(startKey), Bytes.toBytes(endKey));
+    return key == null ? null : Bytes.toLong(key);
+  }
+
+  @Test
+  public void testSnapsBack() throws Exception {
+    addBucket(0L, 2);
+    addBucket(0x1000L, 8);
+    assertEquals(Long.valueOf(0x1000L), snap(0x1800L, 0L, 0x10000L));
+  }
+
+  @Test
+  public void testSnapsForwardFromRegionStart() throws Exception {
+    addBucket(0L, 2);
+    addBucket(0x1000L, 8);
+    assertEquals(Long.valueOf(0x1000L), snap(0x0800L, 0L, 0x10000L));
+    assertNull(snap(0x1800L, 0x1000L, 0x10000L));
+  }
+
+  @Test
+  public void testSkipsOrphanRows() throws Exception {
+    addBucket(0L, 2);
+    addBucket(0x1000L, 8);
+    // the merged bucket [0x2000, 0x3000) left the counters of its upper half
+    addBucket(0x2000L, 4);
+    addOrphan(0x2800L);
+    addBucket(0x3000L, 4);
+    assertEquals(Long.valueOf(0x2000L), snap(0x2900L, 0L, 0x10000L));
+    // walking forward from the region start passes over the orphan too
+    assertEquals(Long.valueOf(0x3000L), snap(0x2900L, 0x2000L, 0x10000L));
+  }
+}
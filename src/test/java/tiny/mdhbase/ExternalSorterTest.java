@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class ExternalSorterTest {
+
+  @Test
+  public void testSortInMemory() throws Exception {
+    assertSorted(1000, 4096);
+  }
+
+  @Test
+  public void testSortWithRuns() throws Exception {
+    assertSorted(1000, 64);
+  }
+
+  private void assertSorted(int n, int bufferSize) throws Exception {
+    ExternalSorter sorter = new ExternalSorter(new File(
+        System.getProperty("java.io.tmpdir")), bufferSize);
+    Random random = new Random(0);
+    for (int i = 0; i < n; i++) {
+      // few distinct keys, so that ids decide the order
+      sorter.add(random.nextInt(16), random.nextLong());
+    }
+    ExternalSorter.Reader reader = sorter.sort();
+    try {
+      assertTrue(reader.next());
+      long key = reader.key();
+      long id = reader.id();
+      int count = 1;
+      while (reader.next()) {
+        assertTrue(ExternalSorter.compare(key, id, reader.key(), reader.id())
+            <= 0);
+        key = reader.key();
+        id = reader.id();
+        count++;
+      }
+      assertEquals(n, count);
+      assertFalse(reader.next());
+    } finally {
+      reader.close();
+      sorter.close();
+    }
+  }
+}
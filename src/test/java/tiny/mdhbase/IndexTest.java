@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class IndexTest {
+
+  @Test
+  public void testCountQuarters() throws Exception {
+    // bucket [00******] of prefix length 2 and its quarters [0000****] etc.
+    List<byte[]> rows = Arrays.asList(Utils.bitwiseZip(0, 0), Utils
+        .bitwiseZip(1 << 30, 0), Utils.bitwiseZip(0, 1 << 30), Utils
+        .bitwiseZip(1 << 30, 1 << 30), Utils.bitwiseZip(1, 1));
+    assertArrayEquals(new long[] { 2L, 1L, 1L, 1L }, Index.countQuarters(
+        rows, 2, 1L));
+    assertArrayEquals(new long[] { -2L, -1L, -1L, -1L }, Index
+        .countQuarters(rows, 2, -1L));
+  }
+
+  @Test
+  public void testCovers() throws Exception {
+    long upper = ZOrder.zip(1 << 30, 0);
+    List<byte[]> rows = Arrays.asList(Utils.bitwiseZip(1 << 30, 5), Utils
+        .bitwiseZip((1 << 30) + (1 << 29), 3));
+    assertTrue(Index.covers(0L, 2, rows));
+    // the lower half of a split bucket no longer covers the rows
+    assertFalse(Index.covers(0L, 3, rows));
+    assertTrue(Index.covers(upper, 3, rows));
+    assertFalse(Index.covers(upper, 5, rows));
+  }
+
+  @Test
+  public void testMergedQuarters() throws Exception {
+    assertArrayEquals(new long[] { 1, 2, 3, 4 }, Index.mergedQuarters(
+        new long[] { 1, 2 }, new long[] { 3, 4 }));
+    assertArrayEquals(new long[] { 5, 0, 7, 0 }, Index.mergedQuarters(
+        new long[] { 5 }, new long[] { 7 }));
+  }
+
+  @Test
+  public void testFoldUpperCounts() throws Exception {
+    // the upper half counted 2 more points in its lower half meanwhile
+    long[] delta = Index.mergedQuarters(new long[2], Index.difference(
+        new long[] { 5, 4 }, new long[] { 3, 4 }));
+    assertArrayEquals(new long[] { 0, 0, 2, 0 }, delta);
+  }
+
+  @Test
+  public void testLowerHalfOf() throws Exception {
+    assertArrayEquals(new long[] { 1, 2 }, Index.lowerHalfOf(new long[] { 1,
+        2, 3, 4 }));
+    assertArrayEquals(new long[] { 6 }, Index.lowerHalfOf(new long[] { 6, 9 }));
+  }
+}
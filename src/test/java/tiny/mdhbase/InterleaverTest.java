@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class InterleaverTest {
+
+  @Test
+  public void testTwoDimensions() throws Exception {
+    Interleaver interleaver = new Interleaver(2);
+    assertEquals(Index.ROOT_PREFIX_LENGTH, interleaver.getRootPrefixLength());
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      int x = random.nextInt(Integer.MAX_VALUE);
+      int y = random.nextInt(Integer.MAX_VALUE);
+      assertEquals(ZOrder.zip(x, y),
+          interleaver.interleave(new int[] { x, y }));
+    }
+  }
+
+  @Test
+  public void testInterleave() throws Exception {
+    Interleaver interleaver = new Interleaver(3);
+    assertEquals(21, interleaver.getBitsPerDimension());
+    assertEquals(1, interleaver.getRootPrefixLength());
+    // [a0,b0,c0,a1,b1,c1] of a=0b10, b=0b01, c=0b11
+    assertEquals(0x2BL, interleaver.interleave(new int[] { 2, 1, 3 }));
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      int[] coords = new int[] { random.nextInt(1 << 21),
+          random.nextInt(1 << 21), random.nextInt(1 << 21) };
+      long z = interleaver.interleave(coords);
+      assertEquals(0L, z >>> 63);
+      assertArrayEquals(coords, interleaver.deinterleave(z));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCoordinateOutOfBits() throws Exception {
+    new Interleaver(4).interleave(new int[] { 0, 0, 0, 1 << 15 });
+  }
+
+  @Test
+  public void testBounds() throws Exception {
+    Interleaver interleaver = new Interleaver(3);
+    // the sub-space of all points whose coordinates share the leading 18 bits
+    int pl = 1 + 18 * 3;
+    assertEquals(new Box(new Range(0, 7), new Range(0, 7), new Range(0, 7)),
+        interleaver.bounds(0L, pl));
+    long key = interleaver.interleave(new int[] { 4, 0, 0 });
+    assertEquals(new Box(new Range(4, 7), new Range(0, 7), new Range(0, 7)),
+        interleaver.bounds(key, pl + 1));
+    assertEquals(new Box(new Range(4, 7), new Range(0, 3), new Range(0, 7)),
+        interleaver.bounds(key, pl + 2));
+  }
+
+  @Test
+  public void testBigminExhaustive() throws Exception {
+    Interleaver interleaver = new Interleaver(3);
+    int n = 4;
+    int size = n * n * n;
+    long[] keys = new long[size];
+    int[][] points = new int[size][];
+    for (int i = 0; i < size; i++) {
+      points[i] = new int[] { i / (n * n), i / n % n, i % n };
+      keys[i] = interleaver.interleave(points[i]);
+    }
+    Random random = new Random(0);
+    for (int t = 0; t < 200; t++) {
+      Range[] ranges = new Range[3];
+      for (int d = 0; d < 3; d++) {
+        int a = random.nextInt(n);
+        int b = random.nextInt(n);
+        ranges[d] = new Range(Math.min(a, b), Math.max(a, b));
+      }
+      Box box = new Box(ranges);
+      long zmin = interleaver.lowerCorner(box);
+      long zmax = interleaver.upperCorner(box);
+      for (long z = 0; z < size; z++) {
+        long expected = -1L;
+        for (int i = 0; i < size; i++) {
+          if (keys[i] >= z && box.include(points[i])
+              && (expected == -1L || keys[i] < expected)) {
+            expected = keys[i];
+          }
+        }
+        assertEquals(box.include(interleaver.deinterleave(z)),
+            interleaver.inBox(z, zmin, zmax));
+        assertEquals(expected, interleaver.bigmin(z, zmin, zmax));
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class KnnHeapTest {
+
+  @Test
+  public void testNearest() throws Exception {
+    Random random = new Random(0);
+    int n = 10000;
+    int k = 100;
+    int qx = 1 << 19;
+    int qy = 1 << 19;
+    long[] distances = new long[n];
+    KnnHeap heap = new KnnHeap(k);
+    for (int i = 0; i < n; i++) {
+      int x = random.nextInt(1 << 20);
+      int y = random.nextInt(1 << 20);
+      distances[i] = KnnHeap.squaredDistance(qx, qy, x, y);
+      heap.offer(i, x, y, distances[i]);
+    }
+    Arrays.sort(distances);
+    assertEquals(distances[k - 1], heap.maxDistance());
+
+    List<Point> results = heap.toSortedList();
+    assertEquals(k, results.size());
+    for (int i = 0; i < k; i++) {
+      Point p = results.get(i);
+      assertEquals(distances[i], KnnHeap.squaredDistance(qx, qy, p.x, p.y));
+    }
+    // the heap is left intact
+    assertEquals(k, heap.size());
+    assertEquals(distances[k - 1], heap.maxDistance());
+  }
+
+  @Test
+  public void testTies() throws Exception {
+    KnnHeap heap = new KnnHeap(3);
+    // four points at the same distance from (10, 10)
+    assertTrue(heap.offer(1L, 10, 13, 9L));
+    assertTrue(heap.offer(2L, 13, 10, 9L));
+    assertTrue(heap.offer(3L, 10, 7, 9L));
+    assertFalse(heap.offer(4L, 7, 10, 9L));
+    assertEquals(3, heap.toSortedList().size());
+
+    assertTrue(heap.offer(5L, 10, 10, 0L));
+    List<Point> results = heap.toSortedList();
+    assertEquals(3, results.size());
+    assertEquals(5L, results.get(0).id);
+  }
+
+  @Test
+  public void testOfferAll() throws Exception {
+    PointBlock block = new PointBlock(4);
+    block.add(1L, 0, 0);
+    block.add(2L, 5, 5);
+    block.add(3L, 1, 1);
+    block.add(4L, 9, 9);
+    KnnHeap heap = new KnnHeap(2);
+    assertFalse(heap.isFull());
+    assertEquals(Long.MAX_VALUE, heap.maxDistance());
+    heap.offerAll(block, 0, 0);
+    assertTrue(heap.isFull());
+    List<Point> results = heap.toSortedList();
+    assertEquals(1L, results.get(0).id);
+    assertEquals(3L, results.get(1).id);
+  }
+
+  @Test
+  public void testLargeK() throws Exception {
+    // the arrays grow with the candidates instead of being sized to k
+    KnnHeap heap = new KnnHeap(Integer.MAX_VALUE);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(heap.offer(i, i, 0, (long) i * i));
+    }
+    assertFalse(heap.isFull());
+    assertEquals(Long.MAX_VALUE, heap.maxDistance());
+    List<Point> results = heap.toSortedList();
+    assertEquals(100, results.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, results.get(i).id);
+    }
+  }
+
+  @Test
+  public void testSquaredDistance() throws Exception {
+    long max = Integer.MAX_VALUE;
+    assertEquals(2 * max * max, KnnHeap.squaredDistance(0, 0,
+        Integer.MAX_VALUE, Integer.MAX_VALUE));
+    assertTrue(KnnHeap.squaredDistance(Integer.MAX_VALUE, 0, 0,
+        Integer.MAX_VALUE) > 0);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class PackedBlockTest {
+
+  @Test
+  public void testEncodeDecode() throws Exception {
+    Random random = new Random(0);
+    int n = 1000;
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = ZOrder.zip(random.nextInt(1 << 20), random.nextInt(1 << 20));
+    }
+    Arrays.sort(keys);
+    long[] ids = new long[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = i % 3 == 0 ? random.nextLong() : i - 500;
+    }
+
+    byte[] chunk = PackedBlock.encode(keys, ids, 100, 900);
+    assertEquals(keys[100], PackedBlock.firstKey(chunk, 0));
+    assertEquals(keys[899], PackedBlock.lastKey(chunk, 0));
+    assertEquals(800, PackedBlock.count(chunk, 0));
+    long[] decodedKeys = new long[800];
+    long[] decodedIds = new long[800];
+    assertEquals(800, PackedBlock.decode(chunk, 0, decodedKeys, decodedIds));
+    assertArrayEquals(Arrays.copyOfRange(keys, 100, 900), decodedKeys);
+    assertArrayEquals(Arrays.copyOfRange(ids, 100, 900), decodedIds);
+  }
+
+  @Test
+  public void testDecodeAtOffset() throws Exception {
+    long[] keys = { 3L, 3L, 40L };
+    long[] ids = { -1L, 7L, 0L };
+    byte[] chunk = PackedBlock.encode(keys, ids, 0, 3);
+    byte[] buffer = new byte[chunk.length + 5];
+    System.arraycopy(chunk, 0, buffer, 5, chunk.length);
+    long[] decodedKeys = new long[3];
+    long[] decodedIds = new long[3];
+    PackedBlock.decode(buffer, 5, decodedKeys, decodedIds);
+    assertArrayEquals(keys, decodedKeys);
+    assertArrayEquals(ids, decodedIds);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    byte[] chunk = PackedBlock.encode(new long[0], new long[0], 0, 0);
+    assertEquals(0, PackedBlock.count(chunk, 0));
+    assertFalse(PackedBlock.intersects(chunk, 0, 0L, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testIntersects() throws Exception {
+    long zmin = ZOrder.zip(1, 1);
+    long zmax = ZOrder.zip(2, 4);
+    long[] inside = { ZOrder.zip(0, 0), ZOrder.zip(2, 3) };
+    assertTrue(PackedBlock.intersects(PackedBlock.encode(inside, new long[2],
+        0, 2), 0, zmin, zmax));
+    // between the corners in Z-order but out of the region
+    long[] gap = { ZOrder.zip(0, 2), ZOrder.zip(0, 3) };
+    assertFalse(PackedBlock.intersects(PackedBlock.encode(gap, new long[2], 0,
+        2), 0, zmin, zmax));
+    long[] beyond = { zmax + 1, zmax + 10 };
+    assertFalse(PackedBlock.intersects(PackedBlock.encode(beyond, new long[2],
+        0, 2), 0, zmin, zmax));
+  }
+
+  @Test
+  public void testStamp() throws Exception {
+    byte[] stamp = PackedBlock.toStamp(5L, 3L, PointFormat.VERSION_2);
+    assertEquals(5L, PackedBlock.modCountOf(stamp));
+    assertEquals(3L, PackedBlock.packIdOf(stamp));
+    assertEquals(PointFormat.VERSION_2, PackedBlock.formatOf(stamp));
+    byte[] qualifier = PackedBlock.toQualifier(3L, 1);
+    assertTrue(PackedBlock.isChunkOf(qualifier, 0, qualifier.length, 3L));
+    assertFalse(PackedBlock.isChunkOf(qualifier, 0, qualifier.length, 2L));
+    assertFalse(PackedBlock.isChunkOf(PackedBlock.STAMP, 0, 0, 3L));
+  }
+
+  @Test
+  public void testKeyOrder() throws Exception {
+    assertTrue(new PackedBlock.Key(1L, 5L).compareTo(
+        new PackedBlock.Key(2L, 0L)) < 0);
+    assertTrue(new PackedBlock.Key(1L, -5L).compareTo(
+        new PackedBlock.Key(1L, 0L)) < 0);
+    assertEquals(new PackedBlock.Key(1L, 2L), new PackedBlock.Key(1L, 2L));
+  }
+}
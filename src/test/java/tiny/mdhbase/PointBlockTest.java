@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class PointBlockTest {
+
+  @Test
+  public void testAddAndGrow() throws Exception {
+    PointBlock block = new PointBlock(2);
+    assertTrue(block.isEmpty());
+    for (int i = 0; i < 5; i++) {
+      block.add(i, 10 + i, 20 + i);
+    }
+    assertEquals(5, block.size());
+    assertTrue(block.capacity() >= 5);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, block.id(i));
+      assertEquals(10 + i, block.x(i));
+      assertEquals(20 + i, block.y(i));
+      assertEquals(20 + i, block.ys()[i]);
+    }
+
+    block.clear();
+    assertTrue(block.isEmpty());
+    assertFalse(block.isFull());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetBeyondSize() throws Exception {
+    PointBlock block = new PointBlock(4);
+    block.add(1L, 2, 3);
+    block.x(1);
+  }
+
+  @Test
+  public void testAddAll() throws Exception {
+    PointBlock a = new PointBlock(2);
+    a.add(1L, 1, 1);
+    PointBlock b = new PointBlock(4);
+    b.add(2L, 2, 2);
+    b.add(3L, 3, 3);
+    b.add(4L, 4, 4);
+    a.addAll(b);
+    assertEquals(4, a.size());
+    assertEquals(4L, a.id(3));
+    assertEquals(2, a.x(1));
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    PointBlock block = new PointBlock(4);
+    for (int i = 0; i < 4; i++) {
+      block.add(i, i, i);
+    }
+    // drops odd entries
+    int to = 0;
+    for (int i = 0; i < block.size(); i += 2) {
+      block.move(i, to++);
+    }
+    block.truncate(to);
+    assertEquals(2, block.size());
+    assertEquals(2L, block.id(1));
+  }
+
+  @Test
+  public void testAsList() throws Exception {
+    PointBlock block = new PointBlock(4);
+    block.add(7L, 1, 2);
+    block.add(8L, 3, 4);
+    List<Point> points = block.asList();
+    assertEquals(2, points.size());
+    assertEquals(8L, points.get(1).id);
+    assertEquals(3, points.get(1).x);
+
+    // the view follows the block
+    block.add(9L, 5, 6);
+    assertEquals(3, points.size());
+    assertEquals(6, points.get(2).y);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class PointFormatTest {
+
+  @Test
+  public void testVarint() throws Exception {
+    long[] values = { 0L, 1L, -1L, 63L, -64L, 64L, 300L, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MIN_VALUE };
+    for (long v : values) {
+      assertEquals(v, PointFormat.fromVarint(PointFormat.toVarint(v)));
+    }
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      long v = random.nextLong() >> random.nextInt(64);
+      assertEquals(v, PointFormat.fromVarint(PointFormat.toVarint(v)));
+    }
+  }
+
+  @Test
+  public void testVarintLength() throws Exception {
+    assertEquals(1, PointFormat.toVarint(0L).length);
+    assertEquals(1, PointFormat.toVarint(-64L).length);
+    assertEquals(1, PointFormat.toVarint(63L).length);
+    assertEquals(2, PointFormat.toVarint(64L).length);
+    assertEquals(3, PointFormat.toVarint(1000000L).length);
+    assertEquals(10, PointFormat.toVarint(Long.MIN_VALUE).length);
+  }
+
+  @Test
+  public void testQualifier() throws Exception {
+    for (PointFormat format : new PointFormat[] { PointFormat.V1,
+        PointFormat.V2 }) {
+      for (long id : new long[] { 0L, 42L, -42L, Long.MAX_VALUE }) {
+        assertEquals(id, format.toId(format.toQualifier(id)));
+      }
+    }
+    assertEquals(8, PointFormat.V1.toValue(new Point(0L, 1, 2)).length);
+    assertEquals(1, PointFormat.V2.toValue(new Point(0L, 1, 2)).length);
+  }
+
+  @Test
+  public void testAddPoints() throws Exception {
+    Point p = new Point(0L, 12345, 678);
+    byte[] row = Utils.bitwiseZip(p.x, p.y);
+    long[] ids = { -7L, 3L, 1L << 40 };
+    for (PointFormat format : new PointFormat[] { PointFormat.V1,
+        PointFormat.V2 }) {
+      KeyValue[] kvs = new KeyValue[ids.length + 1];
+      // cells of other families are skipped
+      kvs[0] = new KeyValue(row, PackedBlock.FAMILY, PackedBlock.STAMP,
+          new byte[20]);
+      for (int i = 0; i < ids.length; i++) {
+        kvs[i + 1] = new KeyValue(row, Bucket.FAMILY, format
+            .toQualifier(ids[i]), format.toValue(p));
+      }
+      PointBlock block = new PointBlock(1);
+      format.addPoints(new Result(kvs), block);
+      assertEquals(ids.length, block.size());
+      for (int i = 0; i < ids.length; i++) {
+        assertEquals(ids[i], block.id(i));
+        assertEquals(p.x, block.x(i));
+        assertEquals(p.y, block.y(i));
+      }
+
+      format.addPoints(new Result(new KeyValue[0]), block);
+      assertEquals(ids.length, block.size());
+    }
+  }
+
+  @Test
+  public void testVarintAtOffset() throws Exception {
+    byte[] varint = PointFormat.toVarint(-300L);
+    byte[] buffer = new byte[varint.length + 4];
+    System.arraycopy(varint, 0, buffer, 2, varint.length);
+    assertEquals(-300L, PointFormat.fromVarint(buffer, 2, varint.length));
+    assertEquals(-300L, PointFormat.V2.toId(buffer, 2, varint.length));
+  }
+
+  @Test
+  public void testOf() throws Exception {
+    assertSame(PointFormat.V1, PointFormat.of(PointFormat.VERSION_1));
+    assertSame(PointFormat.V2, PointFormat.of(PointFormat.VERSION_2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownVersion() throws Exception {
+    PointFormat.of(3);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class RangeFilterTest {
+
+  @Test
+  public void testFilterRowKey() throws Exception {
+    RangeFilter filter = new RangeFilter(new Range(1, 2), new Range(1, 4));
+
+    byte[] in = Utils.bitwiseZip(2, 3);
+    assertFalse(filter.filterRowKey(in, 0, in.length));
+    assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(cell(in)));
+
+    // (0,2) lies between the corners in Z-order but out of the region
+    byte[] out = Utils.bitwiseZip(0, 2);
+    assertFalse(filter.filterRowKey(out, 0, out.length));
+    assertEquals(ReturnCode.SEEK_NEXT_USING_HINT, filter
+        .filterKeyValue(cell(out)));
+    assertFalse(filter.filterAllRemaining());
+
+    byte[] beyond = Utils.bitwiseZip(3, 4);
+    assertTrue(filter.filterRowKey(beyond, 0, beyond.length));
+    assertTrue(filter.filterAllRemaining());
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    RangeFilter filter = new RangeFilter(new Range(1, 2), new Range(1, 4));
+    byte[] row = Utils.bitwiseZip(0, 0);
+    assertFalse(filter.filterRowKey(row, 0, row.length));
+    // chunks are not sought over with the row
+    assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(new KeyValue(row,
+        PackedBlock.FAMILY, PackedBlock.STAMP, PackedBlock.toStamp(1L, 1L,
+            PointFormat.CURRENT_VERSION))));
+    assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(chunk(row, 0, 0,
+        2, 3)));
+    // (0,2) and (0,3) lie between the corners in Z-order but out of the region
+    assertEquals(ReturnCode.SKIP, filter
+        .filterKeyValue(chunk(row, 0, 2, 0, 3)));
+    assertEquals(ReturnCode.SEEK_NEXT_USING_HINT, filter
+        .filterKeyValue(cell(row)));
+  }
+
+  private static KeyValue cell(byte[] row) {
+    return new KeyValue(row, Bucket.FAMILY, PointFormat.V2.toQualifier(1L),
+        PointFormat.V2.toValue(null));
+  }
+
+  private static KeyValue chunk(byte[] row, int x1, int y1, int x2, int y2) {
+    long[] keys = { ZOrder.zip(x1, y1), ZOrder.zip(x2, y2) };
+    long[] ids = { 1L, 2L };
+    return new KeyValue(row, PackedBlock.FAMILY, PackedBlock.toQualifier(1L, 0),
+        PackedBlock.encode(keys, ids, 0, 2));
+  }
+}
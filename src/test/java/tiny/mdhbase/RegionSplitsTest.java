@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class RegionSplitsTest {
+
+  @Test
+  public void testAlignedKey() throws Exception {
+    assertEquals(0x1000L, RegionSplits.alignedKey(0x0FFFL, 0x1234L));
+    assertEquals(0x1200L, RegionSplits.alignedKey(0x1000L, 0x1234L));
+    assertEquals(0x1234L, RegionSplits.alignedKey(0x1233L, 0x1234L));
+  }
+
+  @Test
+  public void testUniform() throws Exception {
+    assertEquals(0, RegionSplits.uniform(1).length);
+    byte[][] splitKeys = RegionSplits.uniform(4);
+    assertEquals(3, splitKeys.length);
+    assertEquals(0x1000000000000000L, Bytes.toLong(splitKeys[0]));
+    assertEquals(0x2000000000000000L, Bytes.toLong(splitKeys[1]));
+    assertEquals(0x3000000000000000L, Bytes.toLong(splitKeys[2]));
+  }
+
+  @Test
+  public void testSampled() throws Exception {
+    Random random = new Random(0);
+    List<Point> sample = new ArrayList<Point>();
+    List<Long> keys = new ArrayList<Long>();
+    for (int i = 0; i < 10000; i++) {
+      // skewed towards the origin
+      int x = (int) Math.abs(random.nextGaussian() * 1000);
+      int y = (int) Math.abs(random.nextGaussian() * 1000);
+      sample.add(new Point(i, x, y));
+      keys.add(ZOrder.zip(x, y));
+    }
+    Collections.sort(keys);
+
+    int regions = 8;
+    byte[][] splitKeys = RegionSplits.sampled(sample, regions);
+    assertEquals(regions - 1, splitKeys.length);
+    int from = 0;
+    for (int i = 0; i <= splitKeys.length; i++) {
+      long end = i < splitKeys.length ? Bytes.toLong(splitKeys[i])
+          : Long.MAX_VALUE;
+      int to = from;
+      while (to < keys.size() && keys.get(to) < end) {
+        to++;
+      }
+      int points = to - from;
+      assertTrue(points > keys.size() / (2 * regions));
+      assertTrue(points <= keys.size() * 3 / (2 * regions));
+      from = to;
+    }
+  }
+
+  @Test
+  public void testSampledDuplicates() throws Exception {
+    List<Point> sample = new ArrayList<Point>();
+    for (int i = 0; i < 100; i++) {
+      sample.add(new Point(i, 5, 5));
+    }
+    byte[][] splitKeys = RegionSplits.sampled(sample, 4);
+    assertEquals(1, splitKeys.length);
+    assertEquals(ZOrder.zip(5, 5), Bytes.toLong(splitKeys[0]));
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import tiny.mdhbase.SplitPlanner.Cell;
+import tiny.mdhbase.SplitPlanner.Histogram;
+
+/**
+ * @author shoji
+ * 
+ */
+public class SplitPlannerTest {
+
+  private static final long ROOT = 0L;
+
+  @Test
+  public void testPlanFromCounters() throws Exception {
+    SplitPlanner planner = new SplitPlanner(10);
+    List<Cell> leaves = new ArrayList<Cell>();
+    List<Cell> overfull = new ArrayList<Cell>();
+    // quarters of [00*]: 3, 4, 20, 1
+    planner.planFromCounters(new Cell(ROOT, 2, new long[] { 3, 4, 20, 1 }, 2),
+        leaves, overfull);
+
+    assertEquals(2, leaves.size());
+    assertEquals(ROOT, leaves.get(0).key);
+    assertEquals(3, leaves.get(0).prefixLength);
+    assertArrayEquals(new long[] { 3, 4 }, leaves.get(0).counts);
+    assertEquals(1, leaves.get(0).depth);
+    assertEquals(0x3000000000000000L, leaves.get(1).key); // [0011*]
+    assertEquals(4, leaves.get(1).prefixLength);
+
+    assertEquals(1, overfull.size());
+    assertEquals(0x2000000000000000L, overfull.get(0).key); // [0010*]
+    assertEquals(4, overfull.get(0).prefixLength);
+    assertEquals(20, overfull.get(0).size());
+  }
+
+  @Test
+  public void testPlanFromHistogram() throws Exception {
+    SplitPlanner planner = new SplitPlanner(2);
+    Histogram histogram = new Histogram();
+    // four points crowded in [0000000*], one point in [01*]
+    histogram.add(0x0000000000000001L, 1);
+    histogram.add(0x0000000000000002L, 1);
+    histogram.add(0x0100000000000000L, 2);
+    histogram.add(0x1000000000000000L, 1);
+    List<Cell> leaves = new ArrayList<Cell>();
+    planner.planFromHistogram(ROOT, 2, histogram, 2, leaves);
+
+    long total = 0;
+    for (Cell leaf : leaves) {
+      assertEquals(true, leaf.size() <= 2);
+      total += leaf.size();
+    }
+    assertEquals(5, total);
+    // leaves tile [00*] in key order
+    long next = ROOT;
+    for (Cell leaf : leaves) {
+      assertEquals(next, leaf.key);
+      next = leaf.key + (1L << (64 - leaf.prefixLength));
+    }
+    assertEquals(0x4000000000000000L, next);
+
+    Cell first = leaves.get(0);
+    assertEquals(8, first.prefixLength); // [00000000*]
+    assertEquals(2, first.size());
+    assertEquals(2, first.depth);
+    assertArrayEquals(new long[] { 2, 0, 0, 0 }, first.counts);
+  }
+
+  @Test
+  public void testPlanFromSortedKeys() throws Exception {
+    SplitPlanner planner = new SplitPlanner(2);
+    long[] keys = new long[] { 0x0000000000000001L, 0x0000000000000002L,
+        0x0100000000000000L, 0x0100000000000000L, 0x1000000000000000L };
+    Histogram histogram = new Histogram();
+    histogram.add(keys[0], 1);
+    histogram.add(keys[1], 1);
+    histogram.add(keys[2], 2);
+    histogram.add(keys[4], 1);
+    List<Cell> expected = new ArrayList<Cell>();
+    planner.planFromHistogram(ROOT, 2, histogram, 2, expected);
+
+    // buckets planned one after another match the buckets split top-down
+    int from = 0;
+    long start = ROOT;
+    for (Cell cell : expected) {
+      assertEquals(cell.key, start);
+      int prefixLength = planner.planFromSortedKeys(start, keys, from,
+          keys.length);
+      assertEquals(cell.prefixLength, prefixLength);
+      start = ZOrder.lastKey(start, prefixLength) + 1;
+      while (from < keys.length && keys[from] < start) {
+        from++;
+      }
+    }
+    assertEquals(0x4000000000000000L, start);
+  }
+
+  @Test
+  public void testPlanAtMaximumPrefixLength() throws Exception {
+    SplitPlanner planner = new SplitPlanner(1);
+    Histogram histogram = new Histogram();
+    histogram.add(0x0000000000000004L, 5); // five points at the same key
+    List<Cell> leaves = new ArrayList<Cell>();
+    planner.planFromHistogram(0x0000000000000004L, 62, histogram, 2, leaves);
+
+    assertEquals(3, leaves.size());
+    Cell crowded = leaves.get(0);
+    assertEquals(64, crowded.prefixLength);
+    assertEquals(0, crowded.depth);
+    assertEquals(5, crowded.size());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class StatTest {
+
+  @Test
+  public void testUpdate() throws Exception {
+    Stat stat = new Stat();
+    assertEquals(0L, stat.getMin());
+    assertEquals(0.0, stat.getMean(), 0.0);
+    stat.update(5L);
+    stat.update(1L);
+    stat.update(9L);
+    assertEquals(3L, stat.getCount());
+    assertEquals(15L, stat.getTotal());
+    assertEquals(1L, stat.getMin());
+    assertEquals(9L, stat.getMax());
+    assertEquals(5.0, stat.getMean(), 0.0);
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    Stat stat = new Stat();
+    assertEquals(0L, stat.get50thPercentile());
+    for (long value = 1; value <= 100; value++) {
+      stat.update(value);
+    }
+    // 50 falls in the bucket [32, 64)
+    assertEquals(63L, stat.get50thPercentile());
+    // 95 and 99 fall in the bucket [64, 128), clamped to the maximum
+    assertEquals(100L, stat.get95thPercentile());
+    assertEquals(100L, stat.get99thPercentile());
+    assertEquals(1L, stat.getPercentile(0.0));
+  }
+
+  @Test
+  public void testBuckets() throws Exception {
+    assertEquals(0, Stat.bucketOf(-5L));
+    assertEquals(0, Stat.bucketOf(0L));
+    assertEquals(1, Stat.bucketOf(1L));
+    assertEquals(2, Stat.bucketOf(3L));
+    assertEquals(3, Stat.bucketOf(4L));
+    assertEquals(63, Stat.bucketOf(Long.MAX_VALUE));
+    assertEquals(3L, Stat.upperBoundOf(2));
+    assertEquals(Long.MAX_VALUE, Stat.upperBoundOf(63));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    Metrics metrics = new Metrics("test", false, false);
+    metrics.stop(Metrics.INSERT, metrics.start());
+    metrics.update(Metrics.BUCKETS_PER_QUERY, 1L);
+    assertTrue(metrics.getStats().isEmpty());
+    metrics.close();
+  }
+}
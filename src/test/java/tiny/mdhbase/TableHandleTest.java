@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class TableHandleTest {
+
+  @Test
+  public void testClosesTablesOfExitedThreads() throws Exception {
+    final TableHandle handle = new TableHandle(new Configuration(), "test");
+    for (int i = 0; i < 3; i++) {
+      Thread worker = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            handle.get();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+
+      };
+      worker.start();
+      worker.join();
+    }
+    assertSame(handle.get(), handle.get());
+    assertEquals(1, handle.openCount());
+    handle.close();
+    assertEquals(0, handle.openCount());
+  }
+}
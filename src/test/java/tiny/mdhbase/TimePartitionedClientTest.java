@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class TimePartitionedClientTest {
+
+  @Test
+  public void testWindowOf() throws Exception {
+    assertEquals(0L, TimePartitionedClient.windowOf(0L, 100L));
+    assertEquals(0L, TimePartitionedClient.windowOf(99L, 100L));
+    assertEquals(100L, TimePartitionedClient.windowOf(100L, 100L));
+    assertEquals(-100L, TimePartitionedClient.windowOf(-1L, 100L));
+    assertEquals(-100L, TimePartitionedClient.windowOf(-100L, 100L));
+    assertEquals(-200L, TimePartitionedClient.windowOf(-101L, 100L));
+  }
+
+  @Test
+  public void testIsExpired() throws Exception {
+    // the newest window is [1000, 1100), and 300 ms are retained
+    assertEquals(800L, TimePartitionedClient.horizonOf(1000L, 100L, 300L));
+    assertTrue(TimePartitionedClient.isExpired(700L, 1000L, 100L, 300L));
+    assertFalse(TimePartitionedClient.isExpired(800L, 1000L, 100L, 300L));
+    assertFalse(TimePartitionedClient.isExpired(1100L, 1000L, 100L, 300L));
+    // no retention period
+    assertFalse(TimePartitionedClient.isExpired(0L, 1000L, 100L, 0L));
+  }
+}
@@ -68,4 +68,16 @@ public class UtilsTest {
     byte[] actual3 = Utils.makeMask(9);
     assertArrayEquals(new byte[] { -1, -128, 0, 0, 0, 0, 0, 0 }, actual3);
   }
+
+  @Test
+  public void testGetBits() throws Exception {
+    byte[] key = new byte[] { 0x5A, -0x80, 0, 0, 0, 0, 0, 1 };
+    assertEquals(0, Utils.getBits(key, 0, 1));
+    assertEquals(1, Utils.getBits(key, 1, 1));
+    assertEquals(0x5, Utils.getBits(key, 0, 4));
+    assertEquals(0x5, Utils.getBits(key, 6, 3)); // crosses a byte boundary
+    assertEquals(1, Utils.getBits(key, 63, 1));
+    assertEquals(2, Utils.getBits(key, 63, 2)); // beyond the key
+    assertEquals(0, Utils.getBits(key, 0, 0));
+  }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Shoji Nishimura
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package tiny.mdhbase;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * @author shoji
+ * 
+ */
+public class ZOrderTest {
+
+  private static long zip(int x, int y) {
+    return Bytes.toLong(Utils.bitwiseZip(x, y));
+  }
+
+  @Test
+  public void testZip() throws Exception {
+    long z = ZOrder.zip(0x0000FFFF, 0x00FF00FF);
+    assertEquals(0x00005555AAAAFFFFL, z);
+    assertEquals(0x0000FFFF, ZOrder.unzipX(z));
+    assertEquals(0x00FF00FF, ZOrder.unzipY(z));
+    assertEquals(-1, ZOrder.unzipX(ZOrder.zip(-1, 0)));
+  }
+
+  @Test
+  public void testLastKey() throws Exception {
+    assertEquals(0x5FFFFFFFFFFFFFFFL, ZOrder.lastKey(0x4000000000000000L, 3));
+    assertEquals(0x4000000000000000L, ZOrder.lastKey(0x4000000000000000L, 64));
+  }
+
+  @Test
+  public void testBigmin() throws Exception {
+    // x in [1,2], y in [1,4]
+    long zmin = zip(1, 1);
+    long zmax = zip(2, 4);
+    assertEquals(zmin, ZOrder.bigmin(0L, zmin, zmax));
+    assertEquals(zip(1, 2), ZOrder.bigmin(zip(1, 2), zmin, zmax));
+    // (0,2) lies between (1,1) and (1,2) in Z-order but out of the box
+    assertEquals(zip(1, 2), ZOrder.bigmin(zip(0, 2), zmin, zmax));
+    assertEquals(-1L, ZOrder.bigmin(zmax + 1, zmin, zmax));
+  }
+
+  @Test
+  public void testBigminExhaustive() throws Exception {
+    int n = 8;
+    for (int xmin = 0; xmin < n; xmin++) {
+      for (int xmax = xmin; xmax < n; xmax++) {
+        for (int ymin = 0; ymin < n; ymin++) {
+          for (int ymax = ymin; ymax < n; ymax++) {
+            long zmin = zip(xmin, ymin);
+            long zmax = zip(xmax, ymax);
+            long expected = -1L;
+            for (long z = n * n - 1; z >= 0; z--) {
+              int[] p = Utils.bitwiseUnzip(Bytes.toBytes(z));
+              boolean in = xmin <= p[0] && p[0] <= xmax && ymin <= p[1]
+                  && p[1] <= ymax;
+              assertEquals(in, ZOrder.inBox(z, zmin, zmax));
+              if (in) {
+                expected = z;
+              }
+              assertEquals(expected, ZOrder.bigmin(z, zmin, zmax));
+            }
+          }
+        }
+      }
+    }
+  }
+}